@@ -74,20 +74,18 @@ public class ALU extends BuiltInGateWithGUI {
         if (gui != null) {
             gui.setValueAt(0, x);
             gui.setValueAt(1, y);
-        }
 
-        int function = (zx << 11) | (nx << 10) | (zy << 9) | (ny << 8) | (f << 7) | (no << 6);
+            int function = (zx << 11) | (nx << 10) | (zy << 9) | (ny << 8) | (f << 7) | (no << 6);
 
-        try {
-            String command = assemblerTranslator.getExpByCode((short)(function | 0xf000));
-            if (command.equals(""))
-                command = assemblerTranslator.getExpByCode((short)(function | 0xe000));
-            if (gui != null)
+            try {
+                String command = assemblerTranslator.getExpByCode((short)(function | 0xf000));
+                if (command.equals(""))
+                    command = assemblerTranslator.getExpByCode((short)(function | 0xe000));
                 gui.setCommand(command);
-        } catch (AssemblerException ae) {}
+            } catch (AssemblerException ae) {}
+        }
 
-        short result = Definitions.computeALU(x, y, zx == 1, nx == 1, zy == 1, ny == 1,
-                                              f == 1, no == 1);
+        short result = ALUTable.computeByControl(zx, nx, zy, ny, f, no, x, y);
 
         outputPins[0].set(result); // out
         outputPins[1].set((short)(result == 0 ? 1 : 0)); // zr
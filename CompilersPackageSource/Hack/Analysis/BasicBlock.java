@@ -0,0 +1,118 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.Analysis;
+
+import java.util.Vector;
+
+/**
+ * A basic block of a machine language program: a sequence of instructions that
+ * is entered only at its first instruction and left only after its last one.
+ */
+public class BasicBlock {
+
+    // The index of the block in its graph
+    private int index;
+
+    // The address of the first instruction, and the address after the last one
+    private int start, end;
+
+    // The blocks that may run after and before this block
+    private Vector successors, predecessors;
+
+    // True if the block ends with a jump whose target isn't known statically
+    private boolean indirect;
+
+    // True if the block can be reached from the start of the program
+    private boolean reachable;
+
+    /**
+     * Constructs a new basic block with the given index in its graph, that spans
+     * the instructions from start up to (not including) end.
+     */
+    BasicBlock(int index, int start, int end) {
+        this.index = index;
+        this.start = start;
+        this.end = end;
+        successors = new Vector();
+        predecessors = new Vector();
+    }
+
+    /**
+     * Returns the index of the block in its graph.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns the address of the first instruction of the block.
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * Returns the address after the last instruction of the block.
+     */
+    public int getEnd() {
+        return end;
+    }
+
+    /**
+     * Returns the blocks (BasicBlock) that may run after this block.
+     */
+    public Vector getSuccessors() {
+        return successors;
+    }
+
+    /**
+     * Returns the blocks (BasicBlock) that may run before this block.
+     */
+    public Vector getPredecessors() {
+        return predecessors;
+    }
+
+    /**
+     * Returns true if the block ends with a jump whose target isn't known statically.
+     * Such a jump is assumed to go to any address that the program loads as a constant.
+     */
+    public boolean isIndirect() {
+        return indirect;
+    }
+
+    /**
+     * Returns true if the block can be reached from the start of the program.
+     */
+    public boolean isReachable() {
+        return reachable;
+    }
+
+    // Adds an edge from this block to the given block (assumed to be new).
+    void addSuccessor(BasicBlock block) {
+        successors.addElement(block);
+        block.predecessors.addElement(this);
+    }
+
+    void setIndirect(boolean indirect) {
+        this.indirect = indirect;
+    }
+
+    void setReachable(boolean reachable) {
+        this.reachable = reachable;
+    }
+}
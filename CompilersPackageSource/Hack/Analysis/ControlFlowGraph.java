@@ -0,0 +1,560 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.Analysis;
+
+import java.util.*;
+import Hack.Assembler.*;
+
+/**
+ * The control flow graph of a machine language (Hack) program. Splits the program
+ * into basic blocks, resolves "@addr" + jump pairs into edges, and finds the
+ * unreachable blocks and the natural loops. The graph can be exported in the DOT
+ * (graphviz) and JSON formats.
+ *
+ * A jump whose target isn't loaded by the instruction right before it, or whose
+ * destination includes A, is indirect: it is assumed to go to any address that the
+ * program loads as a constant and then uses as a value (such as a return address
+ * in "@RET D=A"), rather than as the address of M.
+ *
+ * Graphs are cached by the content hash of the program, so tools that analyze the
+ * same program share a single graph (see getGraph()).
+ */
+public class ControlFlowGraph {
+
+    // The maximal number of cached graphs
+    private static final int MAX_CACHED_GRAPHS = 16;
+
+    // The cached graphs (Vector of graphs with the same hash) by hash (Long)
+    private static Hashtable cache = new Hashtable();
+
+    // The number of cached graphs
+    private static int cachedGraphs;
+
+    // The program (without the trailing NOPs)
+    private short[] program;
+
+    // The basic blocks, ordered by address
+    private BasicBlock[] blocks;
+
+    // The block of each address
+    private BasicBlock[] blockAt;
+
+    // The natural loops (Loop), ordered by the address of their header
+    private Vector loops;
+
+    /**
+     * Returns the control flow graph of the given program (whose trailing NOPs are
+     * ignored). Graphs are cached, so the same graph is returned for programs with
+     * the same contents.
+     */
+    public static synchronized ControlFlowGraph getGraph(short[] program) {
+        int length = program.length;
+        while (length > 0 && program[length - 1] == HackAssemblerTranslator.NOP)
+            length--;
+
+        Long hash = Long.valueOf(hash(program, length));
+        Vector graphs = (Vector)cache.get(hash);
+        if (graphs != null) {
+            for (int i = 0; i < graphs.size(); i++) {
+                ControlFlowGraph graph = (ControlFlowGraph)graphs.elementAt(i);
+                if (graph.hasProgram(program, length))
+                    return graph;
+            }
+        }
+
+        if (cachedGraphs == MAX_CACHED_GRAPHS) {
+            cache.clear();
+            cachedGraphs = 0;
+            graphs = null;
+        }
+        if (graphs == null) {
+            graphs = new Vector();
+            cache.put(hash, graphs);
+        }
+
+        ControlFlowGraph graph = new ControlFlowGraph(program, length);
+        graphs.addElement(graph);
+        cachedGraphs++;
+        return graph;
+    }
+
+    /**
+     * Returns the content hash (64-bit FNV-1a) of the first length words of the given program.
+     */
+    public static long hash(short[] program, int length) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < length; i++) {
+            hash = (hash ^ (program[i] & 0xff)) * 0x100000001b3L;
+            hash = (hash ^ ((program[i] >> 8) & 0xff)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Constructs the control flow graph of the first length words of the given program.
+     */
+    public ControlFlowGraph(short[] program, int length) {
+        this.program = new short[length];
+        System.arraycopy(program, 0, this.program, 0, length);
+
+        findBlocks();
+        findReachable();
+        findLoops();
+    }
+
+    /**
+     * Returns the number of instructions in the graph's program.
+     */
+    public int getLength() {
+        return program.length;
+    }
+
+    /**
+     * Returns the basic blocks, ordered by address.
+     */
+    public BasicBlock[] getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * Returns the basic block that contains the given address, or null if the
+     * address is out of the program.
+     */
+    public BasicBlock getBlockAt(int address) {
+        return (address >= 0 && address < blockAt.length ? blockAt[address] : null);
+    }
+
+    /**
+     * Returns the natural loops (Loop), ordered by the address of their header.
+     */
+    public Vector getLoops() {
+        return loops;
+    }
+
+    /**
+     * Returns the blocks (BasicBlock) that can't be reached from the start of the program.
+     */
+    public Vector getUnreachableBlocks() {
+        Vector result = new Vector();
+        for (int i = 0; i < blocks.length; i++)
+            if (!blocks[i].isReachable())
+                result.addElement(blocks[i]);
+        return result;
+    }
+
+    /**
+     * Returns the graph in the DOT (graphviz) format. Each node lists the instructions
+     * of its block. Unreachable blocks are dashed, and loop headers are bold.
+     */
+    public String toDot() {
+        StringBuffer result = new StringBuffer("digraph cfg {\n");
+        result.append("    node [shape=box, fontname=\"monospace\"];\n");
+
+        for (int i = 0; i < blocks.length; i++) {
+            BasicBlock block = blocks[i];
+            result.append("    b").append(i).append(" [label=\"");
+            for (int address = block.getStart(); address < block.getEnd(); address++)
+                result.append(address).append(": ").append(escape(getText(address))).append("\\l");
+            result.append('"');
+            if (!block.isReachable())
+                result.append(", style=dashed");
+            else if (isLoopHeader(block))
+                result.append(", style=bold");
+            result.append("];\n");
+        }
+
+        for (int i = 0; i < blocks.length; i++) {
+            Vector successors = blocks[i].getSuccessors();
+            for (int j = 0; j < successors.size(); j++) {
+                result.append("    b").append(i).append(" -> b");
+                result.append(((BasicBlock)successors.elementAt(j)).getIndex());
+                if (blocks[i].isIndirect())
+                    result.append(" [style=dotted]");
+                result.append(";\n");
+            }
+        }
+
+        result.append("}\n");
+        return result.toString();
+    }
+
+    /**
+     * Returns the graph in the JSON format: an object with the list of blocks (each
+     * with its index, start, end, instructions, successors, and whether it is reachable
+     * and indirect) and the list of loops (each with its header and blocks).
+     */
+    public String toJSON() {
+        StringBuffer result = new StringBuffer("{\n  \"blocks\": [");
+
+        for (int i = 0; i < blocks.length; i++) {
+            BasicBlock block = blocks[i];
+            result.append(i == 0 ? "\n" : ",\n");
+            result.append("    {\"index\": ").append(i);
+            result.append(", \"start\": ").append(block.getStart());
+            result.append(", \"end\": ").append(block.getEnd());
+            result.append(", \"reachable\": ").append(block.isReachable());
+            result.append(", \"indirect\": ").append(block.isIndirect());
+            result.append(", \"successors\": ");
+            appendIndices(result, block.getSuccessors());
+            result.append(", \"code\": [");
+            for (int address = block.getStart(); address < block.getEnd(); address++) {
+                if (address > block.getStart())
+                    result.append(", ");
+                result.append('"').append(escape(getText(address))).append('"');
+            }
+            result.append("]}");
+        }
+
+        result.append("\n  ],\n  \"loops\": [");
+        for (int i = 0; i < loops.size(); i++) {
+            Loop loop = (Loop)loops.elementAt(i);
+            result.append(i == 0 ? "\n" : ",\n");
+            result.append("    {\"header\": ").append(loop.getHeader().getIndex());
+            result.append(", \"blocks\": ");
+            appendIndices(result, loop.getBlocks());
+            result.append('}');
+        }
+
+        result.append("\n  ]\n}\n");
+        return result.toString();
+    }
+
+    // Returns true if the graph's program is the first length words of the given program.
+    private boolean hasProgram(short[] otherProgram, int length) {
+        if (program.length != length)
+            return false;
+
+        for (int i = 0; i < length; i++)
+            if (program[i] != otherProgram[i])
+                return false;
+
+        return true;
+    }
+
+    // Splits the program into basic blocks and connects them with edges.
+    private void findBlocks() {
+        int length = program.length;
+
+        // the target of each jump (-1 if indirect), and the constants that may be
+        // targets of indirect jumps
+        int[] targets = new int[length];
+        boolean[] leaders = new boolean[length + 1];
+        boolean[] constants = new boolean[length];
+        boolean hasIndirect = false;
+
+        for (int pc = 0; pc < length; pc++) {
+            targets[pc] = -1;
+            if (isJump(program[pc])) {
+                if (pc > 0 && (program[pc - 1] & 0x8000) == 0 && (program[pc] & 0x0020) == 0)
+                    targets[pc] = program[pc - 1];
+                else
+                    hasIndirect = true;
+
+                if (targets[pc] >= 0 && targets[pc] < length)
+                    leaders[targets[pc]] = true;
+                leaders[pc + 1] = true;
+            }
+            else if ((program[pc] & 0x8000) == 0 && program[pc] < length &&
+                     pc + 1 < length && usesAValue(program[pc + 1]))
+                constants[program[pc]] = true;
+        }
+
+        if (hasIndirect)
+            for (int pc = 0; pc < length; pc++)
+                if (constants[pc])
+                    leaders[pc] = true;
+
+        // create the blocks
+        Vector blockList = new Vector();
+        blockAt = new BasicBlock[length];
+        int start = 0;
+        for (int pc = 1; pc <= length; pc++) {
+            if (pc == length || leaders[pc]) {
+                BasicBlock block = new BasicBlock(blockList.size(), start, pc);
+                blockList.addElement(block);
+                for (int i = start; i < pc; i++)
+                    blockAt[i] = block;
+                start = pc;
+            }
+        }
+        blocks = new BasicBlock[blockList.size()];
+        blockList.copyInto(blocks);
+
+        // the blocks that start at a constant address
+        Vector constantBlocks = new Vector();
+        for (int pc = 0; pc < length; pc++)
+            if (hasIndirect && constants[pc])
+                constantBlocks.addElement(blockAt[pc]);
+
+        // connect the blocks, marking the successors of each block so that each edge
+        // is added once
+        int[] marks = new int[blocks.length];
+        for (int i = 0; i < blocks.length; i++) {
+            BasicBlock block = blocks[i];
+            int last = block.getEnd() - 1;
+            short instruction = program[last];
+
+            if (!isJump(instruction) || (instruction & 0x0007) != 0x0007) {
+                if (block.getEnd() < length)
+                    addEdge(block, blocks[i + 1], marks);
+            }
+
+            if (isJump(instruction)) {
+                if (targets[last] >= 0) {
+                    if (targets[last] < length)
+                        addEdge(block, blockAt[targets[last]], marks);
+                }
+                else {
+                    block.setIndirect(true);
+                    for (int j = 0; j < constantBlocks.size(); j++)
+                        addEdge(block, (BasicBlock)constantBlocks.elementAt(j), marks);
+                }
+            }
+        }
+    }
+
+    // Adds an edge between the given blocks unless the target is already marked as
+    // a successor of the source.
+    private static void addEdge(BasicBlock source, BasicBlock target, int[] marks) {
+        if (marks[target.getIndex()] != source.getIndex() + 1) {
+            marks[target.getIndex()] = source.getIndex() + 1;
+            source.addSuccessor(target);
+        }
+    }
+
+    // Marks the blocks that can be reached from the start of the program.
+    private void findReachable() {
+        if (blocks.length == 0)
+            return;
+
+        Stack stack = new Stack();
+        blocks[0].setReachable(true);
+        stack.push(blocks[0]);
+        while (!stack.isEmpty()) {
+            Vector successors = ((BasicBlock)stack.pop()).getSuccessors();
+            for (int i = 0; i < successors.size(); i++) {
+                BasicBlock successor = (BasicBlock)successors.elementAt(i);
+                if (!successor.isReachable()) {
+                    successor.setReachable(true);
+                    stack.push(successor);
+                }
+            }
+        }
+    }
+
+    // Finds the natural loops, from the back edges to blocks that dominate their source.
+    private void findLoops() {
+        loops = new Vector();
+        if (blocks.length == 0)
+            return;
+
+        int[] dominators = findDominators();
+
+        // the blocks of the current loop, marked in inLoop and listed in members;
+        // only the listed indices are cleared for the next loop
+        boolean[] inLoop = new boolean[blocks.length];
+        int[] members = new int[blocks.length];
+        Stack stack = new Stack();
+
+        for (int h = 0; h < blocks.length; h++) {
+            BasicBlock header = blocks[h];
+            if (!header.isReachable() || !hasBackEdge(dominators, header))
+                continue;
+
+            // collects the blocks that reach a back edge to the header without passing it
+            int count = 0;
+            inLoop[h] = true;
+            members[count++] = h;
+            Vector predecessors = header.getPredecessors();
+            for (int i = 0; i < predecessors.size(); i++) {
+                BasicBlock source = (BasicBlock)predecessors.elementAt(i);
+                if (source.isReachable() && !inLoop[source.getIndex()] &&
+                    dominates(dominators, h, source.getIndex())) {
+                    inLoop[source.getIndex()] = true;
+                    members[count++] = source.getIndex();
+                    stack.push(source);
+                }
+            }
+
+            while (!stack.isEmpty()) {
+                Vector sources = ((BasicBlock)stack.pop()).getPredecessors();
+                for (int i = 0; i < sources.size(); i++) {
+                    BasicBlock source = (BasicBlock)sources.elementAt(i);
+                    if (source.isReachable() && !inLoop[source.getIndex()]) {
+                        inLoop[source.getIndex()] = true;
+                        members[count++] = source.getIndex();
+                        stack.push(source);
+                    }
+                }
+            }
+
+            Arrays.sort(members, 0, count);
+            Vector loopBlocks = new Vector(count);
+            for (int i = 0; i < count; i++) {
+                loopBlocks.addElement(blocks[members[i]]);
+                inLoop[members[i]] = false;
+            }
+            loops.addElement(new Loop(header, loopBlocks));
+        }
+    }
+
+    // Returns true if a reachable block that the given header dominates jumps back to it.
+    private boolean hasBackEdge(int[] dominators, BasicBlock header) {
+        Vector predecessors = header.getPredecessors();
+        for (int i = 0; i < predecessors.size(); i++) {
+            BasicBlock source = (BasicBlock)predecessors.elementAt(i);
+            if (source.isReachable() && dominates(dominators, header.getIndex(), source.getIndex()))
+                return true;
+        }
+        return false;
+    }
+
+    // Returns the immediate dominator index of each reachable block (-1 for the others),
+    // computed iteratively over the reverse postorder (Cooper, Harvey & Kennedy).
+    private int[] findDominators() {
+        int[] order = new int[blocks.length];
+        int[] postorder = new int[blocks.length];
+        int count = 0;
+
+        // iterative depth first search from the first block
+        boolean[] visited = new boolean[blocks.length];
+        int[] stack = new int[blocks.length];
+        int[] nextSuccessor = new int[blocks.length];
+        int top = 0;
+        stack[top++] = 0;
+        visited[0] = true;
+        while (top > 0) {
+            int b = stack[top - 1];
+            Vector successors = blocks[b].getSuccessors();
+            if (nextSuccessor[b] < successors.size()) {
+                int s = ((BasicBlock)successors.elementAt(nextSuccessor[b]++)).getIndex();
+                if (!visited[s]) {
+                    visited[s] = true;
+                    stack[top++] = s;
+                }
+            }
+            else {
+                top--;
+                postorder[b] = count;
+                order[count++] = b;
+            }
+        }
+
+        int[] dominators = new int[blocks.length];
+        for (int i = 0; i < dominators.length; i++)
+            dominators[i] = -1;
+        dominators[0] = 0;
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = count - 2; i >= 0; i--) {
+                int b = order[i];
+                int dominator = -1;
+                Vector predecessors = blocks[b].getPredecessors();
+                for (int j = 0; j < predecessors.size(); j++) {
+                    int p = ((BasicBlock)predecessors.elementAt(j)).getIndex();
+                    if (dominators[p] == -1)
+                        continue;
+                    if (dominator == -1)
+                        dominator = p;
+                    else {
+                        // intersect
+                        int x = p, y = dominator;
+                        while (x != y) {
+                            while (postorder[x] < postorder[y])
+                                x = dominators[x];
+                            while (postorder[y] < postorder[x])
+                                y = dominators[y];
+                        }
+                        dominator = x;
+                    }
+                }
+                if (dominators[b] != dominator) {
+                    dominators[b] = dominator;
+                    changed = true;
+                }
+            }
+        }
+
+        return dominators;
+    }
+
+    // Returns true if block a dominates block b.
+    private static boolean dominates(int[] dominators, int a, int b) {
+        while (b != a) {
+            if (b == 0 || dominators[b] == -1)
+                return false;
+            b = dominators[b];
+        }
+        return true;
+    }
+
+    // Returns true if the given block is the header of a loop.
+    private boolean isLoopHeader(BasicBlock block) {
+        for (int i = 0; i < loops.size(); i++)
+            if (((Loop)loops.elementAt(i)).getHeader() == block)
+                return true;
+        return false;
+    }
+
+    // Returns true if the given instruction is a C-instruction with a jump.
+    private static boolean isJump(short instruction) {
+        return ((instruction & 0xe000) == 0xe000 && (instruction & 0x0007) != 0);
+    }
+
+    // Returns true if the given instruction is a C-instruction that computes with
+    // the value of A (rather than M or nothing).
+    private static boolean usesAValue(short instruction) {
+        return ((instruction & 0xe000) == 0xe000 && (instruction & 0x1000) == 0
+                && (instruction & 0x0200) == 0);
+    }
+
+    // Returns the assembly text of the instruction at the given address.
+    private String getText(int address) {
+        try {
+            String text = HackAssemblerTranslator.getInstance().codeToText(program[address]);
+            return (text.equals("") ? "NOP" : text);
+        } catch (AssemblerException ae) {
+            return "???";
+        }
+    }
+
+    // Appends the indices of the given blocks as a JSON array.
+    private static void appendIndices(StringBuffer result, Vector blockList) {
+        result.append('[');
+        for (int i = 0; i < blockList.size(); i++) {
+            if (i > 0)
+                result.append(", ");
+            result.append(((BasicBlock)blockList.elementAt(i)).getIndex());
+        }
+        result.append(']');
+    }
+
+    // Escapes quotes and backslashes for DOT and JSON strings.
+    private static String escape(String text) {
+        StringBuffer result = new StringBuffer();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\')
+                result.append('\\');
+            result.append(c);
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,57 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.Analysis;
+
+import java.util.Vector;
+
+/**
+ * A natural loop of a control flow graph: a header block, which dominates all the
+ * blocks of the loop, and the blocks that can reach a back edge to the header
+ * without passing through it.
+ */
+public class Loop {
+
+    // The header of the loop
+    private BasicBlock header;
+
+    // The blocks of the loop (BasicBlock), ordered by address, including the header
+    private Vector blocks;
+
+    /**
+     * Constructs a new loop with the given header and blocks.
+     */
+    Loop(BasicBlock header, Vector blocks) {
+        this.header = header;
+        this.blocks = blocks;
+    }
+
+    /**
+     * Returns the header of the loop.
+     */
+    public BasicBlock getHeader() {
+        return header;
+    }
+
+    /**
+     * Returns the blocks of the loop (BasicBlock), ordered by address,
+     * including the header.
+     */
+    public Vector getBlocks() {
+        return blocks;
+    }
+}
@@ -0,0 +1,392 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+package Hack.Assembler;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * An assembler that keeps its results in a cache directory. The compiled program
+ * of each source is kept with its labels in a binary program (.hackb) file named
+ * after a hash of the source contents, so assembling an unchanged source only loads
+ * that file. In addition, the source is split into chunks at lines chosen by their
+ * contents, and the code of each chunk, before its symbols are resolved, is kept for
+ * the next assembly of the same file. When a source is edited, only the chunks that
+ * changed are translated again, and the labels and variables are then resolved
+ * over the whole program as in the SinglePassAssembler. The binary programs and
+ * the chunks are kept with their SHA-1 digests, and an entry that doesn't match its
+ * digest is translated again. The binary program of the previous version of an
+ * edited source is deleted from the cache, unless another source still uses it.
+ *
+ * Assembly files that are loaded into the simulators, or translated by the command
+ * line assembler, go through the cache if the system property "hack.assembler.cache"
+ * is set to a cache directory.
+ */
+public class CachingAssembler extends SinglePassAssembler {
+
+    /**
+     * The name of the system property with the cache directory.
+     */
+    public static final String CACHE_DIR_PROPERTY = "hack.assembler.cache";
+
+    // The version of the chunks file format
+    private static final int CHUNKS_VERSION = 3;
+
+    // The minimal and maximal number of lines in a chunk
+    private static final int MIN_CHUNK_LINES = 256;
+    private static final int MAX_CHUNK_LINES = 8192;
+
+    // A line ends a chunk if the bits of its hash under this mask are 0
+    private static final int BOUNDARY_MASK = 0x3ff;
+
+    // True if the program was loaded from the cache as a whole
+    private boolean cacheHit;
+
+    // The number of chunks that were translated and that were taken from the cache
+    private int translatedChunks, cachedChunks;
+
+    // The hash of the program that was last assembled from the same file (null if unknown)
+    private String previousProgramKey;
+
+    /**
+     * Constructs a new CachingAssembler and translates the given .asm file, using
+     * and updating the cache in the given directory.
+     */
+    public CachingAssembler(String fileName, File cacheDir) throws AssemblerException {
+        byte[] source = readFile(fileName);
+        String programKey = hash(source);
+        File programFile = new File(cacheDir, programKey + ".hackb");
+        File chunksFile = new File(cacheDir,
+                                   hash(new File(fileName).getAbsolutePath().getBytes()) + ".chunks");
+
+        if (programFile.exists()) {
+            try {
+                short[] program = HackAssemblerTranslator.loadBinaryProgram(programFile.getPath());
+                setProgram(program, program.length,
+                           HackAssemblerTranslator.loadBinarySymbols(programFile.getPath()));
+                cacheHit = true;
+            } catch (AssemblerException ae) {
+                // a broken entry is assembled again
+            }
+
+            // records that this file uses the program, so that it isn't deleted
+            // when another file with the same contents is edited
+            if (cacheHit) {
+                if (!programKey.equals(readProgramKey(chunksFile))) {
+                    Hashtable oldChunks = readChunks(chunksFile);
+                    Vector keys = new Vector();
+                    Vector chunks = new Vector();
+                    Enumeration oldKeys = oldChunks.keys();
+                    while (oldKeys.hasMoreElements()) {
+                        Object key = oldKeys.nextElement();
+                        keys.addElement(key);
+                        chunks.addElement(oldChunks.get(key));
+                    }
+
+                    try {
+                        writeChunks(chunksFile, programKey, keys, chunks);
+                        evict(cacheDir, previousProgramKey, programKey);
+                    } catch (IOException ioe) {
+                    }
+                }
+                return;
+            }
+        }
+
+        Hashtable oldChunks = readChunks(chunksFile);
+        Vector keys = new Vector();
+        Vector chunks = new Vector();
+
+        String text = new String(source);
+        int pos = 0, chunkStart = 0, firstLine = 0, lineNumber = 0;
+        while (pos < text.length()) {
+            int end = lineEnd(text, pos);
+            int hash = 0;
+            for (int i = pos; i < end; i++)
+                hash = 31 * hash + text.charAt(i);
+
+            pos = nextLine(text, end);
+            lineNumber++;
+
+            int lines = lineNumber - firstLine;
+            if ((lines >= MIN_CHUNK_LINES && ((hash * 0x9e3779b9) >>> 22 & BOUNDARY_MASK) == 0)
+                || lines == MAX_CHUNK_LINES || pos == text.length()) {
+
+                String chunkText = text.substring(chunkStart, pos);
+                String key = hash(chunkText.getBytes());
+                SinglePassAssembler chunk = (SinglePassAssembler)oldChunks.get(key);
+                if (chunk == null) {
+                    chunk = compileChunk(chunkText, firstLine);
+                    translatedChunks++;
+                }
+                else
+                    cachedChunks++;
+
+                keys.addElement(key);
+                chunks.addElement(chunk);
+                append(chunk);
+                chunkStart = pos;
+                firstLine = lineNumber;
+            }
+        }
+
+        backpatch();
+
+        // the cache is only an optimization, so failing to update it is not an error
+        try {
+            cacheDir.mkdirs();
+            File tempFile = File.createTempFile(programFile.getName() + ".", ".tmp", cacheDir);
+            try {
+                saveBinary(tempFile.getPath());
+                replace(tempFile, programFile);
+            } finally {
+                tempFile.delete();
+            }
+            writeChunks(chunksFile, programKey, keys, chunks);
+            evict(cacheDir, previousProgramKey, programKey);
+        } catch (AssemblerException ae) {
+        } catch (IOException ioe) {
+        }
+    }
+
+    /**
+     * Translates the given .asm file, through the cache if the cache directory
+     * property is set.
+     */
+    public static SinglePassAssembler assemble(String fileName) throws AssemblerException {
+        String cacheDir = System.getProperty(CACHE_DIR_PROPERTY);
+        if (cacheDir != null)
+            return new CachingAssembler(fileName, new File(cacheDir));
+        else
+            return new SinglePassAssembler(fileName);
+    }
+
+    /**
+     * Returns true if the program was loaded from the cache as a whole.
+     */
+    public boolean isCacheHit() {
+        return cacheHit;
+    }
+
+    /**
+     * Returns the number of chunks of the source that were translated.
+     */
+    public int getTranslatedChunks() {
+        return translatedChunks;
+    }
+
+    /**
+     * Returns the number of chunks of the source that were taken from the cache.
+     */
+    public int getCachedChunks() {
+        return cachedChunks;
+    }
+
+    // Translates the lines of the given chunk, whose first line has the given index.
+    private static SinglePassAssembler compileChunk(String text, int firstLine)
+     throws AssemblerException {
+        SinglePassAssembler chunk = new SinglePassAssembler();
+        int pos = 0;
+        for (int lineNumber = firstLine; pos < text.length(); lineNumber++) {
+            int end = lineEnd(text, pos);
+            chunk.compile(text.substring(pos, end), lineNumber);
+            pos = nextLine(text, end);
+        }
+
+        return chunk;
+    }
+
+    // Returns the end of the line that starts at the given position, as readLine() does.
+    private static int lineEnd(String text, int pos) {
+        while (pos < text.length() && text.charAt(pos) != '\n' && text.charAt(pos) != '\r')
+            pos++;
+        return pos;
+    }
+
+    // Returns the start of the line after the line that ends at the given position.
+    private static int nextLine(String text, int end) {
+        if (end == text.length())
+            return end;
+        if (text.charAt(end) == '\r' && end + 1 < text.length() && text.charAt(end + 1) == '\n')
+            return end + 2;
+        return end + 1;
+    }
+
+    // Returns the chunks that are kept in the given file, mapping the hash of each
+    // chunk to its assembler, and sets the hash of the program that was assembled
+    // from them. Chunks that don't match their digest are left out. Returns an empty
+    // table if the file can't be read.
+    private Hashtable readChunks(File file) {
+        Hashtable chunks = new Hashtable();
+        if (!file.exists())
+            return chunks;
+
+        try {
+            ByteBuffer in = map(file);
+            if (in.getInt() == CHUNKS_VERSION) {
+                previousProgramKey = SinglePassAssembler.readString(in);
+                for (int count = in.getInt(); count > 0; count--) {
+                    String key = SinglePassAssembler.readString(in);
+                    String digest = SinglePassAssembler.readString(in);
+                    int size = in.getInt();
+                    if (size < 0 || size > in.remaining())
+                        throw new IOException("Illegal length");
+
+                    byte[] data = new byte[size];
+                    in.get(data);
+                    if (digest.equals(hash(data)))
+                        chunks.put(key, SinglePassAssembler.read(ByteBuffer.wrap(data)));
+                }
+            }
+        } catch (IOException ioe) {
+            chunks.clear();
+        } catch (BufferUnderflowException bue) {
+            chunks.clear();
+        } catch (AssemblerException ae) {
+            chunks.clear();
+        }
+
+        return chunks;
+    }
+
+    // Returns the hash of the program that was last assembled with the chunks in the
+    // given file, or null if the file can't be read.
+    private static String readProgramKey(File file) {
+        if (!file.exists())
+            return null;
+
+        try {
+            ByteBuffer in = map(file);
+            if (in.getInt() == CHUNKS_VERSION)
+                return SinglePassAssembler.readString(in);
+        } catch (IOException ioe) {
+        } catch (BufferUnderflowException bue) {
+        }
+
+        return null;
+    }
+
+    // Deletes the binary program with the given hash from the given cache directory,
+    // unless it is the given current program or the chunks file of a source still
+    // refers to it.
+    private static void evict(File cacheDir, String programKey, String currentProgramKey) {
+        if (programKey == null || programKey.equals(currentProgramKey))
+            return;
+
+        File[] files = cacheDir.listFiles();
+        if (files == null)
+            return;
+
+        for (int i = 0; i < files.length; i++)
+            if (files[i].getName().endsWith(".chunks") &&
+                programKey.equals(readProgramKey(files[i])))
+                return;
+
+        new File(cacheDir, programKey + ".hackb").delete();
+    }
+
+    // Writes the given chunks, each with its hash and the digest of its data, and the
+    // hash of the program that was assembled from them into the given file.
+    private static void writeChunks(File file, String programKey, Vector keys, Vector chunks)
+     throws IOException {
+        File tempFile = File.createTempFile(file.getName() + ".", ".tmp", file.getParentFile());
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                                                         new FileOutputStream(tempFile)));
+            try {
+                out.writeInt(CHUNKS_VERSION);
+                out.writeUTF(programKey);
+                out.writeInt(keys.size());
+                for (int i = 0; i < keys.size(); i++) {
+                    ByteArrayOutputStream data = new ByteArrayOutputStream();
+                    DataOutputStream dataOut = new DataOutputStream(data);
+                    ((SinglePassAssembler)chunks.elementAt(i)).write(dataOut);
+                    dataOut.flush();
+
+                    out.writeUTF((String)keys.elementAt(i));
+                    out.writeUTF(hash(data.toByteArray()));
+                    out.writeInt(data.size());
+                    data.writeTo(out);
+                }
+            } catch (AssemblerException ae) {
+                throw new IOException(ae.getMessage());
+            } finally {
+                out.close();
+            }
+
+            replace(tempFile, file);
+        } finally {
+            tempFile.delete();
+        }
+    }
+
+    // Replaces the given file with the given new file, so that readers never see
+    // a partly written file. Each writer writes its own new file, so concurrent
+    // writers of the same file never see each other's partly written files.
+    private static void replace(File newFile, File file) throws IOException {
+        if (!newFile.renameTo(file)) {
+            file.delete();
+            if (!newFile.renameTo(file))
+                throw new IOException("could not create file " + file);
+        }
+    }
+
+    // Maps the given file into memory.
+    private static ByteBuffer map(File file) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            channel.close();
+        }
+    }
+
+    // Returns the contents of the given file.
+    private static byte[] readFile(String fileName) throws AssemblerException {
+        try {
+            File file = new File(fileName);
+            byte[] contents = new byte[(int)file.length()];
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                in.readFully(contents);
+            } finally {
+                in.close();
+            }
+            return contents;
+        } catch (IOException ioe) {
+            throw new AssemblerException("Error reading from file " + fileName);
+        }
+    }
+
+    // Returns the SHA-1 hash of the given bytes, in hexadecimal.
+    private static String hash(byte[] bytes) throws AssemblerException {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(bytes);
+            StringBuffer hex = new StringBuffer();
+            for (int i = 0; i < digest.length; i++) {
+                hex.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+                hex.append(Character.forDigit(digest[i] & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new AssemblerException(nsae.getMessage());
+        }
+    }
+}
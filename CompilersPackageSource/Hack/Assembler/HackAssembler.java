@@ -37,6 +37,9 @@ public class HackAssembler extends HackTranslator {
     // the symbol table
     private Hashtable symbolTable;
 
+    // the labels of the program and their addresses
+    private Hashtable labels;
+
     // The comarison program array
     private short[] comparisonProgram;
 
@@ -73,6 +76,26 @@ public class HackAssembler extends HackTranslator {
         gui.hideComparison();
     }
 
+    /**
+     * Returns a table of the labels of the program, mapping each label
+     * to its address (Short) in the program.
+     */
+    public Hashtable getLabels() {
+        return labels;
+    }
+
+    /**
+     * Saves the compiled program, with its labels, into the given binary
+     * program (.hackb) file.
+     */
+    public void saveBinary(String fileName) throws HackTranslatorException {
+        try {
+            HackAssemblerTranslator.saveBinaryProgram(fileName, program, programSize, labels);
+        } catch (AssemblerException ae) {
+            throw new HackTranslatorException(ae.getMessage());
+        }
+    }
+
     protected String getSourceExtension() {
         return "asm";
     }
@@ -146,13 +169,15 @@ public class HackAssembler extends HackTranslator {
     // value according to it's location in the program
     private void generateSymbolTable() throws HackTranslatorException {
         symbolTable = Definitions.getInstance().getAddressesTable();
+        labels = new Hashtable();
         short pc = 0;
+        int lineNumber = 0;
         String line;
         String label;
 
         try {
             BufferedReader sourceReader = new BufferedReader(new FileReader(sourceFileName));
-            while((line = sourceReader.readLine()) != null) {
+            for (; (line = sourceReader.readLine()) != null; lineNumber++) {
 
                 AssemblyLineTokenizer input = new AssemblyLineTokenizer(line);
 
@@ -167,6 +192,7 @@ public class HackAssembler extends HackTranslator {
                         input.ensureEnd();
 
                         symbolTable.put(label,new Short(pc));
+                        labels.put(label,Short.valueOf(pc));
                     }
                     else if (input.contains("["))
                         pc += 2;
@@ -178,6 +204,9 @@ public class HackAssembler extends HackTranslator {
             sourceReader.close();
         } catch (IOException ioe) {
             throw new HackTranslatorException("Error reading from file " + sourceFileName);
+        } catch (HackTranslatorException hte) {
+            // the line number of the tokenizer is always 1
+            throw new HackTranslatorException(hte.getDescription(), lineNumber);
         }
     }
 
@@ -336,6 +365,9 @@ public class HackAssembler extends HackTranslator {
             throw new HackTranslatorException("Error reading from file " + sourceFileName);
         } catch (AssemblerException ae) {
             throw new HackTranslatorException(ae.getMessage(), sourcePC);
+        } catch (HackTranslatorException hte) {
+            // the line number of the tokenizer is always 1
+            throw new HackTranslatorException(hte.getDescription(), sourcePC);
         }
     }
 
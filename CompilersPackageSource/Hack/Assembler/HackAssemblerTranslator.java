@@ -19,6 +19,9 @@ package Hack.Assembler;
 
 import java.util.*;
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.security.*;
 import Hack.Utilities.*;
 import Hack.Translators.*;
 
@@ -34,6 +37,31 @@ public class HackAssemblerTranslator {
      */
     public static final short NOP = (short)0x8000;
 
+    /**
+     * The first 4 bytes ("HAKB") of a binary program (.hackb) file.
+     * A binary program file contains, big-endian: the magic number (int), the format
+     * version (int), the program length in words (int), the number of symbols (int),
+     * the program words (shorts), for each symbol its address (short) and its name
+     * (as in DataOutput.writeUTF), and then the SHA-1 digest of all the preceding bytes.
+     */
+    public static final int BINARY_MAGIC = 0x48414b42;
+
+    /**
+     * The version of the binary program format.
+     */
+    public static final int BINARY_VERSION = 2;
+
+    /**
+     * The result of encode() for a command that it can't translate.
+     */
+    public static final int UNKNOWN_COMMAND = -1;
+
+    // The size of the header of a binary program file
+    private static final int BINARY_HEADER_SIZE = 16;
+
+    // The size of the digest at the end of a binary program file
+    private static final int BINARY_DIGEST_SIZE = 20;
+
     // exp constants
     private static final Short ZERO         = new Short((short)0xea80);
     private static final Short ONE          = new Short((short)0xefc0);
@@ -91,6 +119,9 @@ public class HackAssemblerTranslator {
     // The translation table from code to text.
     private Hashtable expToText, destToText, jmpToText;
 
+    // The translation tables from packed text to codes, used by encode()
+    private CodeTable expCodes, destCodes, jmpCodes;
+
 
     /**
      * Creates a new translator.
@@ -100,6 +131,10 @@ public class HackAssemblerTranslator {
         initExp();
         initDest();
         initJmp();
+
+        expCodes = new CodeTable(expToCode);
+        destCodes = new CodeTable(destToCode);
+        jmpCodes = new CodeTable(jmpToCode);
     }
 
     /**
@@ -177,12 +212,139 @@ public class HackAssemblerTranslator {
         return result;
     }
 
+    /**
+     * Translates the assembly language command in the given range of the given text
+     * and returns the corresponding machine language code, without allocating any
+     * objects. Handles numeric A-commands and compute-store-jump commands, with spaces
+     * and a comment. Returns UNKNOWN_COMMAND for anything else, including illegal
+     * commands, which textToCode() reports.
+     */
+    public int encode(String text, int start, int end) {
+        int commentPos = text.indexOf("//", start);
+        if (commentPos >= 0 && commentPos < end) {
+            // a comment ends at the end of the line
+            for (int i = commentPos; i < end; i++) {
+                if (text.charAt(i) == '\r' || text.charAt(i) == '\n')
+                    return UNKNOWN_COMMAND;
+            }
+            end = commentPos;
+        }
+
+        while (start < end && isWhitespace(text.charAt(start)))
+            start++;
+        while (end > start && isWhitespace(text.charAt(end - 1)))
+            end--;
+
+        if (start == end)
+            return UNKNOWN_COMMAND;
+
+        if (text.charAt(start) == '@')
+            return encodeAddress(text, start + 1, end);
+
+        long destKey = 0, expKey = 0, key = 0;
+        int length = 0;
+        boolean hasJmp = false;
+
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == ' ')
+                continue;
+
+            if (c == '=') {
+                if (destKey != 0 || hasJmp || length == 0)
+                    return UNKNOWN_COMMAND;
+                destKey = key;
+                key = length = 0;
+            }
+            else if (c == ';') {
+                if (hasJmp || length == 0)
+                    return UNKNOWN_COMMAND;
+                expKey = key;
+                hasJmp = true;
+                key = length = 0;
+            }
+            else if (length < CodeTable.MAX_LENGTH && isWordChar(c)) {
+                key = (key << 8) | c;
+                length++;
+            }
+            else
+                return UNKNOWN_COMMAND;
+        }
+
+        if (length == 0)
+            return UNKNOWN_COMMAND;
+
+        int exp, dest = 0, jmp = 0;
+        if (hasJmp) {
+            exp = expCodes.get(expKey);
+            jmp = jmpCodes.get(key);
+        }
+        else
+            exp = expCodes.get(key);
+
+        if (destKey != 0)
+            dest = destCodes.get(destKey);
+
+        if (exp == UNKNOWN_COMMAND || dest == UNKNOWN_COMMAND || jmp == UNKNOWN_COMMAND)
+            return UNKNOWN_COMMAND;
+
+        return (exp + dest + jmp) & 0xffff;
+    }
+
+    // Returns the code of the numeric A-command whose value is in the given range
+    // of the given text, or UNKNOWN_COMMAND if the value is not a legal number.
+    private static int encodeAddress(String text, int start, int end) {
+        while (start < end && text.charAt(start) == ' ')
+            start++;
+
+        boolean negative = false;
+        if (start < end && (text.charAt(start) == '-' || text.charAt(start) == '+')) {
+            negative = (text.charAt(start) == '-');
+            start++;
+        }
+
+        int value = 0, digits = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == ' ')
+                continue;
+            if (c < '0' || c > '9')
+                return UNKNOWN_COMMAND;
+
+            value = value * 10 + (c - '0');
+            digits++;
+            if (value > 32768)
+                return UNKNOWN_COMMAND;
+        }
+
+        if (digits == 0 || (value == 32768 && !negative))
+            return UNKNOWN_COMMAND;
+
+        return (negative ? -value : value) & 0xffff;
+    }
+
+    // Returns true if the given character is a white space of the AssemblyLineTokenizer.
+    private static boolean isWhitespace(char c) {
+        return (c == ' ' || c == '\t' || c == '\r' || c == '\n');
+    }
+
+    // Returns true if the given character is a word character of the AssemblyLineTokenizer.
+    private static boolean isWordChar(char c) {
+        return ((c >= '0' && c <= '9') || (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') ||
+                c == '_' || c == '+' || c == '-' || c == '.' || c == ':' || c == '!' ||
+                c == '&' || c == '|' || c == '$');
+    }
+
     /**
      * Translates the given assembly language command and returns the corresponding
      * machine language code.
      * If the command is not legal, throws AssemblerException.
      */
     public short textToCode(String command) throws AssemblerException {
+        int encoded = encode(command, 0, command.length());
+        if (encoded != UNKNOWN_COMMAND)
+            return (short)encoded;
+
         short code = 0;
         short expCode = 0, jmpCode = 0, destCode = 0;
 
@@ -290,7 +452,7 @@ public class HackAssemblerTranslator {
     }
 
     /**
-     * Loads the given program file (HACK or ASM) and returns a memory array of
+     * Loads the given program file (HACK, binary HACK or ASM) and returns a memory array of
      * the given size that contains the program. The given null value will be used
      * to fill the memory array initially.
      */
@@ -333,20 +495,156 @@ public class HackAssemblerTranslator {
                 throw new AssemblerException("IO error while reading " + fileName);
             }
         }
+        else if (fileName.endsWith(".hackb")) {
+            ByteBuffer buffer = mapBinaryProgram(fileName);
+            int length = buffer.getInt(8);
+            if (length > size)
+                throw new AssemblerException("Program too large");
+
+            memory = new short[size];
+            buffer.position(BINARY_HEADER_SIZE);
+            buffer.asShortBuffer().get(memory, 0, length);
+            for (int i = length; i < size; i++)
+                memory[i] = nullValue;
+        }
         else if (fileName.endsWith(".asm")) {
-            try {
-                HackAssembler assembler = new HackAssembler(fileName, size, nullValue, false);
-                memory = assembler.getProgram();
-            } catch (HackTranslatorException ae) {
-                throw new AssemblerException(ae.getMessage());
-            }
+            SinglePassAssembler assembler = CachingAssembler.assemble(fileName);
+            memory = assembler.getProgram(size, nullValue);
         }
         else
-            throw new AssemblerException(fileName + " is not a .hack or .asm file");
+            throw new AssemblerException(fileName + " is not a .hack, .hackb or .asm file");
 
         return memory;
     }
 
+    /**
+     * Saves the first length words of the given program into the given binary
+     * program (.hackb) file, with the given table of symbols (String) and their
+     * addresses (Short). The symbols may be null.
+     */
+    public static void saveBinaryProgram(String fileName, short[] program, int length,
+                                         Hashtable symbols)
+     throws AssemblerException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            DigestOutputStream digestOut = new DigestOutputStream(new BufferedOutputStream(
+                                                new FileOutputStream(fileName)), digest);
+            DataOutputStream out = new DataOutputStream(digestOut);
+            try {
+                out.writeInt(BINARY_MAGIC);
+                out.writeInt(BINARY_VERSION);
+                out.writeInt(length);
+                out.writeInt(symbols != null ? symbols.size() : 0);
+
+                for (int i = 0; i < length; i++)
+                    out.writeShort(program[i]);
+
+                if (symbols != null) {
+                    Enumeration names = symbols.keys();
+                    while (names.hasMoreElements()) {
+                        String name = (String)names.nextElement();
+                        out.writeShort(((Short)symbols.get(name)).shortValue());
+                        out.writeUTF(name);
+                    }
+                }
+
+                digestOut.on(false);
+                out.write(digest.digest());
+            } finally {
+                out.close();
+            }
+        } catch (IOException ioe) {
+            throw new AssemblerException("could not create file " + fileName);
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new AssemblerException(nsae.getMessage());
+        }
+    }
+
+    /**
+     * Returns the program words of the given binary program (.hackb) file.
+     */
+    public static short[] loadBinaryProgram(String fileName) throws AssemblerException {
+        ByteBuffer buffer = mapBinaryProgram(fileName);
+        short[] program = new short[buffer.getInt(8)];
+        buffer.position(BINARY_HEADER_SIZE);
+        buffer.asShortBuffer().get(program);
+        return program;
+    }
+
+    /**
+     * Returns the symbols of the given binary program (.hackb) file, as a table
+     * that maps each symbol to its address (Short).
+     */
+    public static Hashtable loadBinarySymbols(String fileName) throws AssemblerException {
+        ByteBuffer buffer = mapBinaryProgram(fileName);
+        int count = buffer.getInt(12);
+        if (count < 0)
+            throw new AssemblerException(fileName + " has an illegal number of symbols");
+
+        Hashtable symbols = new Hashtable();
+
+        try {
+            buffer.position(BINARY_HEADER_SIZE + buffer.getInt(8) * 2);
+            for (int i = 0; i < count; i++) {
+                Short address = Short.valueOf(buffer.getShort());
+                byte[] name = new byte[buffer.getShort() & 0xffff];
+                buffer.get(name);
+                symbols.put(new String(name, "UTF-8"), address);
+            }
+        } catch (BufferUnderflowException bue) {
+            throw new AssemblerException(fileName + " is truncated");
+        } catch (UnsupportedEncodingException uee) {
+            throw new AssemblerException(uee.getMessage());
+        }
+
+        return symbols;
+    }
+
+    // Maps the given binary program file into memory, and checks its header and its
+    // digest. The limit of the returned buffer excludes the digest.
+    private static ByteBuffer mapBinaryProgram(String fileName) throws AssemblerException {
+        ByteBuffer buffer;
+        try {
+            FileChannel channel = new RandomAccessFile(fileName, "r").getChannel();
+            try {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                channel.close();
+            }
+        } catch (IOException ioe) {
+            throw new AssemblerException("IO error while reading " + fileName);
+        }
+
+        if (buffer.limit() < BINARY_HEADER_SIZE || buffer.getInt(0) != BINARY_MAGIC)
+            throw new AssemblerException(fileName + " is not a binary program file");
+        if (buffer.getInt(4) != BINARY_VERSION)
+            throw new AssemblerException(fileName + " has an unsupported version");
+        if (buffer.limit() < BINARY_HEADER_SIZE + BINARY_DIGEST_SIZE)
+            throw new AssemblerException(fileName + " is truncated");
+
+        int end = buffer.limit() - BINARY_DIGEST_SIZE;
+        byte[] digest = new byte[BINARY_DIGEST_SIZE];
+        buffer.position(end);
+        buffer.get(digest);
+        buffer.position(0);
+        buffer.limit(end);
+        try {
+            MessageDigest contents = MessageDigest.getInstance("SHA-1");
+            contents.update(buffer);
+            if (!MessageDigest.isEqual(digest, contents.digest()))
+                throw new AssemblerException(fileName + " is corrupt");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new AssemblerException(nsae.getMessage());
+        }
+        buffer.position(0);
+
+        int length = buffer.getInt(8);
+        if (length < 0 || length > (end - BINARY_HEADER_SIZE) / 2)
+            throw new AssemblerException(fileName + " is truncated");
+
+        return buffer;
+    }
+
     // initializes the exp table
     private void initExp() {
         expToCode = new Hashtable();
@@ -463,4 +761,55 @@ public class HackAssemblerTranslator {
         jmpToText.put(JMP_LESS_EQUAL,"JLE");
         jmpToText.put(JMP_GREATER_EQUAL,"JGE");
     }
+
+    /**
+     * A table from the text of a mnemonic to its code, where the text is packed
+     * into a long, 8 bits per character. Lookups use open addressing over
+     * primitive arrays, so they don't allocate.
+     */
+    private static class CodeTable {
+
+        // The maximal number of characters in a packed text
+        static final int MAX_LENGTH = 7;
+
+        // The number of slots in the table
+        private static final int SIZE = 128;
+
+        // The packed texts (0 for an empty slot) and their codes
+        private long[] keys = new long[SIZE];
+        private int[] codes = new int[SIZE];
+
+        // Constructs a table with the entries of the given table from text to code (Short).
+        CodeTable(Hashtable table) {
+            Enumeration texts = table.keys();
+            while (texts.hasMoreElements()) {
+                String text = (String)texts.nextElement();
+                long key = 0;
+                for (int i = 0; i < text.length(); i++)
+                    key = (key << 8) | text.charAt(i);
+
+                int slot = slot(key);
+                while (keys[slot] != 0)
+                    slot = (slot + 1) & (SIZE - 1);
+
+                keys[slot] = key;
+                codes[slot] = ((Short)table.get(text)).shortValue() & 0xffff;
+            }
+        }
+
+        // Returns the code of the given packed text, or UNKNOWN_COMMAND if not found.
+        int get(long key) {
+            for (int slot = slot(key); keys[slot] != 0; slot = (slot + 1) & (SIZE - 1)) {
+                if (keys[slot] == key)
+                    return codes[slot];
+            }
+
+            return UNKNOWN_COMMAND;
+        }
+
+        // Returns the first slot of the given packed text.
+        private static int slot(long key) {
+            return (int)((key * 0x9e3779b97f4a7c15L) >>> 57);
+        }
+    }
 }
@@ -0,0 +1,134 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+package Hack.Assembler;
+
+import java.io.*;
+import java.util.Vector;
+
+/**
+ * An assembler for very large .asm files, which translates chunks of the source
+ * lines concurrently. Each chunk is translated by its own SinglePassAssembler
+ * into a buffer of its own. The chunks are then appended in order, moving their
+ * labels and symbol references by the size of the code before them, and all the
+ * symbols are resolved at the end. Variables are therefore allocated in the order
+ * of their first reference in the file, and the result is identical to that of
+ * the HackAssembler.
+ */
+public class ParallelAssembler extends SinglePassAssembler {
+
+    // The minimal number of lines in a chunk
+    private static final int MIN_CHUNK_LINES = 16384;
+
+    /**
+     * Constructs a new ParallelAssembler and translates the given .asm file on the
+     * given number of threads.
+     */
+    public ParallelAssembler(String fileName, int numberOfThreads) throws AssemblerException {
+        String[] lines = readLines(fileName);
+        int numberOfChunks = Math.max(1, Math.min(numberOfThreads,
+                                                  lines.length / MIN_CHUNK_LINES));
+
+        Chunk[] chunks = new Chunk[numberOfChunks];
+        Thread[] threads = new Thread[numberOfChunks];
+        for (int i = 0; i < numberOfChunks; i++) {
+            chunks[i] = new Chunk(lines, (int)((long)lines.length * i / numberOfChunks),
+                                  (int)((long)lines.length * (i + 1) / numberOfChunks));
+            threads[i] = new Thread(chunks[i]);
+            threads[i].start();
+        }
+
+        try {
+            for (int i = 0; i < numberOfChunks; i++)
+                threads[i].join();
+        } catch (InterruptedException ie) {
+            throw new AssemblerException("Assembly of " + fileName + " was interrupted");
+        }
+
+        // the first error in the file is reported, including unexpected exceptions
+        // of the threads, so that a failed chunk is never appended
+        for (int i = 0; i < numberOfChunks; i++) {
+            Throwable error = chunks[i].error;
+            if (error instanceof AssemblerException)
+                throw (AssemblerException)error;
+            else if (error instanceof RuntimeException)
+                throw (RuntimeException)error;
+            else if (error instanceof Error)
+                throw (Error)error;
+            else if (error != null)
+                throw new AssemblerException(error.toString());
+
+            append(chunks[i].assembler);
+        }
+
+        backpatch();
+    }
+
+    // Returns the lines of the given file.
+    private static String[] readLines(String fileName) throws AssemblerException {
+        Vector lines = new Vector();
+
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(fileName));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null)
+                    lines.addElement(line);
+            } finally {
+                reader.close();
+            }
+        } catch (IOException ioe) {
+            throw new AssemblerException("Error reading from file " + fileName);
+        }
+
+        String[] result = new String[lines.size()];
+        lines.copyInto(result);
+        return result;
+    }
+
+    // Translates a range of the source lines.
+    private static class Chunk implements Runnable {
+
+        // The source lines
+        private String[] lines;
+
+        // The range of the lines of this chunk
+        private int start, end;
+
+        // The assembler of this chunk
+        SinglePassAssembler assembler;
+
+        // The first error in this chunk, or null if none
+        Throwable error;
+
+        // Constructs a new chunk of the given range of the given lines.
+        Chunk(String[] lines, int start, int end) {
+            this.lines = lines;
+            this.start = start;
+            this.end = end;
+            assembler = new SinglePassAssembler();
+        }
+
+        public void run() {
+            try {
+                for (int i = start; i < end; i++)
+                    assembler.compile(lines[i], i);
+            } catch (Throwable t) {
+                error = t;
+            }
+        }
+    }
+}
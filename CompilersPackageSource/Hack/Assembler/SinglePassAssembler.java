@@ -0,0 +1,465 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+package Hack.Assembler;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import Hack.Utilities.*;
+import Hack.Translators.*;
+
+/**
+ * An assembler that translates an .asm file in a single pass over the source.
+ * The code is emitted into a growable buffer, and every symbolic address is
+ * recorded and backpatched at the end, once all the labels are known. Symbols
+ * that are not labels are then allocated as variables in the order of their
+ * first reference, so the result is identical to that of the HackAssembler.
+ * Common lines are translated directly, without an AssemblyLineTokenizer.
+ */
+public class SinglePassAssembler {
+
+    // The initial size of the code buffer
+    private static final int INITIAL_SIZE = 1024;
+
+    // The translator of the assembly commands
+    private HackAssemblerTranslator translator;
+
+    // The compiled code
+    private short[] code;
+
+    // The number of words in the code
+    private int length;
+
+    // The labels of the program and their addresses
+    private Hashtable labels;
+
+    // The referenced symbols, in the order of their first reference
+    private Vector symbols;
+
+    // Maps each referenced symbol to its index (Integer) in symbols
+    private Hashtable symbolIndices;
+
+    // The addresses in the code that refer to symbols, and the indices of these symbols
+    private int[] fixupAddresses;
+    private int[] fixupSymbols;
+
+    // The number of fixups
+    private int fixupCount;
+
+    /**
+     * Constructs a new SinglePassAssembler and translates the given .asm file.
+     */
+    public SinglePassAssembler(String fileName) throws AssemblerException {
+        this();
+
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(fileName));
+            try {
+                String line;
+                for (int lineNumber = 0; (line = reader.readLine()) != null; lineNumber++)
+                    compile(line, lineNumber);
+            } finally {
+                reader.close();
+            }
+        } catch (IOException ioe) {
+            throw new AssemblerException("Error reading from file " + fileName);
+        }
+
+        backpatch();
+    }
+
+    // Constructs a new SinglePassAssembler with no code.
+    SinglePassAssembler() {
+        translator = HackAssemblerTranslator.getInstance();
+        code = new short[INITIAL_SIZE];
+        labels = new Hashtable();
+        symbols = new Vector();
+        symbolIndices = new Hashtable();
+        fixupAddresses = new int[INITIAL_SIZE];
+        fixupSymbols = new int[INITIAL_SIZE];
+    }
+
+    /**
+     * Returns the number of words in the compiled program.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Returns a memory array of the given size that contains the compiled program.
+     * The given null value will be used to fill the rest of the array.
+     */
+    public short[] getProgram(int size, short nullValue) throws AssemblerException {
+        if (length > size)
+            throw new AssemblerException("Program too large");
+
+        short[] program = new short[size];
+        System.arraycopy(code, 0, program, 0, length);
+        for (int i = length; i < size; i++)
+            program[i] = nullValue;
+
+        return program;
+    }
+
+    /**
+     * Returns a table of the labels of the program, mapping each label
+     * to its address (Short) in the program.
+     */
+    public Hashtable getLabels() {
+        return labels;
+    }
+
+    /**
+     * Saves the compiled program into the given .hack file.
+     */
+    public void save(String fileName) throws AssemblerException {
+        try {
+            PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(fileName)));
+            for (int i = 0; i < length; i++)
+                writer.println(Conversions.decimalToBinary(code[i], 16));
+            writer.close();
+        } catch (IOException ioe) {
+            throw new AssemblerException("could not create file " + fileName);
+        }
+    }
+
+    /**
+     * Saves the compiled program, with its labels, into the given binary
+     * program (.hackb) file.
+     */
+    public void saveBinary(String fileName) throws AssemblerException {
+        HackAssemblerTranslator.saveBinaryProgram(fileName, code, length, labels);
+    }
+
+    // Replaces the code and the labels with the given ones, of a compiled program.
+    void setProgram(short[] code, int length, Hashtable labels) {
+        this.code = code;
+        this.length = length;
+        this.labels = labels;
+    }
+
+    // Writes the code of this assembler, which is not backpatched yet, with its
+    // labels and symbol references, into the given stream.
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(length);
+        for (int i = 0; i < length; i++)
+            out.writeShort(code[i]);
+
+        out.writeInt(labels.size());
+        Enumeration names = labels.keys();
+        while (names.hasMoreElements()) {
+            String name = (String)names.nextElement();
+            out.writeUTF(name);
+            out.writeShort(((Short)labels.get(name)).shortValue());
+        }
+
+        out.writeInt(symbols.size());
+        for (int i = 0; i < symbols.size(); i++)
+            out.writeUTF((String)symbols.elementAt(i));
+
+        out.writeInt(fixupCount);
+        for (int i = 0; i < fixupCount; i++) {
+            out.writeInt(fixupAddresses[i]);
+            out.writeInt(fixupSymbols[i]);
+        }
+    }
+
+    // Reads an assembler that was written by write() from the given buffer.
+    // Throws BufferUnderflowException if the buffer is truncated.
+    static SinglePassAssembler read(ByteBuffer in) throws IOException {
+        SinglePassAssembler assembler = new SinglePassAssembler();
+
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining() / 2)
+            throw new IOException("Illegal length");
+
+        assembler.ensureCapacity(length);
+        in.asShortBuffer().get(assembler.code, 0, length);
+        in.position(in.position() + length * 2);
+        assembler.length = length;
+
+        for (int count = in.getInt(); count > 0; count--) {
+            String name = readString(in);
+            assembler.labels.put(name, Short.valueOf(in.getShort()));
+        }
+
+        for (int count = in.getInt(); count > 0; count--)
+            assembler.symbolIndex(readString(in));
+
+        for (int count = in.getInt(); count > 0; count--) {
+            int address = in.getInt();
+            int symbolIndex = in.getInt();
+            if (address < 0 || address >= length || symbolIndex < 0 ||
+                symbolIndex >= assembler.symbols.size())
+                throw new IOException("Illegal fixup");
+
+            assembler.addFixup(address, symbolIndex);
+        }
+
+        return assembler;
+    }
+
+    // Reads a string that was written by DataOutputStream.writeUTF() from the given buffer.
+    static String readString(ByteBuffer in) throws IOException {
+        byte[] bytes = new byte[in.getShort() & 0xffff];
+        in.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    // Translates the given source line, whose index (counted from 0 as in the
+    // HackAssembler) is given, and adds its code to the end of the code.
+    void compile(String line, int lineNumber) throws AssemblerException {
+        try {
+            if (!compileLine(line))
+                compileTokenizedLine(line);
+        } catch (AssemblerException ae) {
+            throw new AssemblerException(ae.getMessage(), lineNumber);
+        }
+    }
+
+    // Adds the code of the given assembler, which is not backpatched yet, to the
+    // end of the code. Its labels and symbol references are moved accordingly.
+    void append(SinglePassAssembler other) {
+        int base = length;
+        ensureCapacity(length + other.length);
+        System.arraycopy(other.code, 0, code, base, other.length);
+        length += other.length;
+
+        Enumeration names = other.labels.keys();
+        while (names.hasMoreElements()) {
+            String name = (String)names.nextElement();
+            short address = ((Short)other.labels.get(name)).shortValue();
+            labels.put(name, Short.valueOf((short)(base + address)));
+        }
+
+        int[] indices = new int[other.symbols.size()];
+        for (int i = 0; i < indices.length; i++)
+            indices[i] = symbolIndex((String)other.symbols.elementAt(i));
+
+        for (int i = 0; i < other.fixupCount; i++)
+            addFixup(base + other.fixupAddresses[i], indices[other.fixupSymbols[i]]);
+    }
+
+    // Translates the given line directly. Returns false if the line is not in
+    // one of the common forms, and should be translated with a tokenizer.
+    private boolean compileLine(String line) throws AssemblerException {
+        int end = line.indexOf("//");
+        if (end < 0)
+            end = line.length();
+
+        int start = 0;
+        while (start < end && isWhitespace(line.charAt(start)))
+            start++;
+        while (end > start && isWhitespace(line.charAt(end - 1)))
+            end--;
+
+        if (start == end)
+            return true;
+
+        char first = line.charAt(start);
+        if (first != '(') {
+            int command = translator.encode(line, start, end);
+            if (command != HackAssemblerTranslator.UNKNOWN_COMMAND) {
+                emit((short)command);
+                return true;
+            }
+            else if (first != '@')
+                return false;
+        }
+
+        // spaces are removed, as in the AssemblyLineTokenizer
+        String text = line.substring(start, end);
+        if (text.indexOf(' ') >= 0)
+            text = removeSpaces(text);
+
+        int textLength = text.length();
+        if (first == '(') {
+            if (textLength < 3 || text.charAt(textLength - 1) != ')' ||
+                !isWord(text, 1, textLength - 1))
+                return false;
+
+            labels.put(text.substring(1, textLength - 1), Short.valueOf((short)length));
+        }
+        else {
+            // not a legal number, so it is a symbol
+            if (textLength < 2 || !isWord(text, 1, textLength))
+                return false;
+
+            addReference(text.substring(1));
+        }
+
+        return true;
+    }
+
+    // Translates the given line with an AssemblyLineTokenizer, the way the
+    // HackAssembler does.
+    private void compileTokenizedLine(String line) throws AssemblerException {
+        try {
+            AssemblyLineTokenizer input = new AssemblyLineTokenizer(line);
+
+            if (input.isEnd())
+                return;
+
+            if (input.isToken("(")) {
+                input.advance(true);
+                String label = input.token();
+                input.advance(true);
+                if (!input.isToken(")"))
+                    throw new AssemblerException("')' expected");
+
+                input.ensureEnd();
+                labels.put(label, Short.valueOf((short)length));
+            }
+            else if (input.isToken("@")) {
+                input.advance(true);
+                String symbol = input.token();
+                input.ensureEnd();
+                try {
+                    emit(Short.parseShort(symbol));
+                } catch (NumberFormatException nfe) {
+                    addReference(symbol);
+                }
+            }
+            else { // try to compile normaly, if error - try to compile as compact assembly
+                try {
+                    emit(translator.textToCode(line));
+                } catch (AssemblerException ae) {
+                    int openAddressPos = line.indexOf("[");
+                    if (openAddressPos < 0)
+                        throw ae;
+
+                    int lastPos = line.lastIndexOf("[");
+                    int closeAddressPos = line.indexOf("]");
+
+                    if (openAddressPos != lastPos || openAddressPos > closeAddressPos ||
+                        openAddressPos + 1 == closeAddressPos)
+                        throw new AssemblerException("Illegal use of the [] notation");
+
+                    compileTokenizedLine("@" + line.substring(openAddressPos + 1, closeAddressPos));
+                    compileTokenizedLine(line.substring(0, openAddressPos).concat(
+                        line.substring(closeAddressPos + 1)));
+                }
+            }
+        } catch (IOException ioe) {
+            throw new AssemblerException("Error while parsing assembly line");
+        } catch (HackTranslatorException hte) {
+            // the line number of the tokenizer is always 1, so it is replaced by compile()
+            throw new AssemblerException(hte.getDescription());
+        }
+    }
+
+    // Makes room in the code buffer for the given number of words.
+    private void ensureCapacity(int size) {
+        if (size > code.length) {
+            short[] newCode = new short[Math.max(size, code.length * 2)];
+            System.arraycopy(code, 0, newCode, 0, length);
+            code = newCode;
+        }
+    }
+
+    // Adds the given word to the end of the code.
+    private void emit(short word) {
+        if (length == code.length)
+            ensureCapacity(length + 1);
+
+        code[length++] = word;
+    }
+
+    // Adds an A-instruction that refers to the given symbol, to be patched later.
+    private void addReference(String symbol) {
+        addFixup(length, symbolIndex(symbol));
+        emit((short)0);
+    }
+
+    // Returns the index of the given symbol in symbols, adding it if it's new.
+    private int symbolIndex(String symbol) {
+        Integer index = (Integer)symbolIndices.get(symbol);
+        if (index == null) {
+            index = Integer.valueOf(symbols.size());
+            symbols.addElement(symbol);
+            symbolIndices.put(symbol, index);
+        }
+
+        return index.intValue();
+    }
+
+    // Records that the word at the given address refers to the symbol with the given index.
+    private void addFixup(int address, int symbolIndex) {
+        if (fixupCount == fixupAddresses.length) {
+            int[] newAddresses = new int[fixupCount * 2];
+            int[] newSymbols = new int[fixupCount * 2];
+            System.arraycopy(fixupAddresses, 0, newAddresses, 0, fixupCount);
+            System.arraycopy(fixupSymbols, 0, newSymbols, 0, fixupCount);
+            fixupAddresses = newAddresses;
+            fixupSymbols = newSymbols;
+        }
+
+        fixupAddresses[fixupCount] = address;
+        fixupSymbols[fixupCount++] = symbolIndex;
+    }
+
+    // Resolves the referenced symbols into labels, predefined symbols or new
+    // variables, and patches their references.
+    void backpatch() {
+        Hashtable predefined = Definitions.getInstance().getAddressesTable();
+        short[] addresses = new short[symbols.size()];
+        short varIndex = Definitions.VAR_START_ADDRESS;
+
+        for (int i = 0; i < addresses.length; i++) {
+            String symbol = (String)symbols.elementAt(i);
+            Short address = (Short)labels.get(symbol);
+            if (address == null)
+                address = (Short)predefined.get(symbol);
+
+            addresses[i] = (address != null ? address.shortValue() : varIndex++);
+        }
+
+        for (int i = 0; i < fixupCount; i++)
+            code[fixupAddresses[i]] = addresses[fixupSymbols[i]];
+    }
+
+    // Returns true if the given character is a white space of a source line.
+    private static boolean isWhitespace(char c) {
+        return (c == ' ' || c == '\t' || c == '\r' || c == '\n');
+    }
+
+    // Returns true if the given range of the text is made of word characters
+    // of the AssemblyLineTokenizer only.
+    private static boolean isWord(String text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') ||
+                  c == '_' || c == '+' || c == '-' || c == '.' || c == ':' || c == '!' ||
+                  c == '&' || c == '|' || c == '$'))
+                return false;
+        }
+
+        return true;
+    }
+
+    // Removes space characters from the given string.
+    private static String removeSpaces(String text) {
+        StringBuffer nospc = new StringBuffer(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) != ' ')
+                nospc.append(text.charAt(i));
+        }
+
+        return nospc.toString();
+    }
+}
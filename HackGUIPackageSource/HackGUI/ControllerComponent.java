@@ -64,6 +64,9 @@ public class ControllerComponent extends JFrame implements ControllerGUI,
     // The single step button.
     protected MouseOverJButton singleStepButton;
 
+    // The step back button.
+    protected MouseOverJButton stepBackButton;
+
     // The load program button.
     protected MouseOverJButton loadProgramButton;
 
@@ -75,6 +78,7 @@ public class ControllerComponent extends JFrame implements ControllerGUI,
     private ImageIcon rewindIcon = new ImageIcon(Utilities.imagesDir + "vcrrewind.gif");
     private ImageIcon ffwdIcon = new ImageIcon(Utilities.imagesDir + "vcrfastforward.gif");
     private ImageIcon singleStepIcon = new ImageIcon(Utilities.imagesDir + "vcrforward.gif");
+    private ImageIcon stepBackIcon = new ImageIcon(Utilities.imagesDir + "vcrbackward.gif");
     private ImageIcon stopIcon = new ImageIcon(Utilities.imagesDir + "vcrstop.gif");
     private ImageIcon breakIcon = new ImageIcon(Utilities.imagesDir + "redflag.gif");
     private ImageIcon loadProgramIcon = new ImageIcon(Utilities.imagesDir + "opendoc.gif");
@@ -98,7 +102,7 @@ public class ControllerComponent extends JFrame implements ControllerGUI,
     // The components of the menu
     protected JMenuBar menuBar;
     protected JMenu fileMenu, viewMenu, runMenu, helpMenu;
-    protected JMenuItem singleStepMenuItem, ffwdMenuItem, stopMenuItem, rewindMenuItem, exitMenuItem;
+    protected JMenuItem singleStepMenuItem, stepBackMenuItem, ffwdMenuItem, stopMenuItem, rewindMenuItem, exitMenuItem;
     protected JMenuItem usageMenuItem, aboutMenuItem;
     protected JMenu animationSubMenu, numericFormatSubMenu, additionalDisplaySubMenu;
     protected JMenuItem breakpointsMenuItem, scriptMenuItem, programMenuItem;
@@ -180,6 +184,7 @@ public class ControllerComponent extends JFrame implements ControllerGUI,
         scriptButton = new MouseOverJButton();
         breakButton = new MouseOverJButton();
         singleStepButton = new MouseOverJButton();
+        stepBackButton = new MouseOverJButton();
     }
 
 
@@ -341,6 +346,22 @@ public class ControllerComponent extends JFrame implements ControllerGUI,
         rewindMenuItem.setEnabled(false);
     }
 
+    /**
+     * Enables the step back action.
+     */
+    public void enableStepBack() {
+        stepBackButton.setEnabled(true);
+        stepBackMenuItem.setEnabled(true);
+    }
+
+    /**
+     * Disables the step back action.
+     */
+    public void disableStepBack() {
+        stepBackButton.setEnabled(false);
+        stepBackMenuItem.setEnabled(false);
+    }
+
     /**
      * Enables the load program action.
      */
@@ -504,6 +525,7 @@ public class ControllerComponent extends JFrame implements ControllerGUI,
     protected void arrangeToolBar() {
         toolBar.add(loadProgramButton);
         toolBar.addSeparator(separatorDimension);
+        toolBar.add(stepBackButton);
         toolBar.add(singleStepButton);
         toolBar.add(ffwdButton);
         toolBar.add(stopButton);
@@ -703,6 +725,15 @@ public class ControllerComponent extends JFrame implements ControllerGUI,
         });
         runMenu.add(singleStepMenuItem);
 
+        stepBackMenuItem = new JMenuItem("Step Back", KeyEvent.VK_K);
+        stepBackMenuItem.setAccelerator(KeyStroke.getKeyStroke("shift F11"));
+        stepBackMenuItem.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                stepBackMenuItem_actionPerformed(e);
+            }
+        });
+        runMenu.add(stepBackMenuItem);
+
         ffwdMenuItem = new JMenuItem("Run", KeyEvent.VK_F);
         ffwdMenuItem.setAccelerator(KeyStroke.getKeyStroke("F5"));
         ffwdMenuItem.addActionListener(new ActionListener() {
@@ -831,6 +862,17 @@ public class ControllerComponent extends JFrame implements ControllerGUI,
         stopButton.setToolTipText("Stop");
         stopButton.setIcon(stopIcon);
 
+        stepBackButton.setMaximumSize(new Dimension(39, 39));
+        stepBackButton.setMinimumSize(new Dimension(39, 39));
+        stepBackButton.setPreferredSize(new Dimension(39, 39));
+        stepBackButton.setToolTipText("Step Back");
+        stepBackButton.setIcon(stepBackIcon);
+        stepBackButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                stepBackButton_actionPerformed(e);
+            }
+        });
+
         rewindButton.setMaximumSize(new Dimension(39, 39));
         rewindButton.setMinimumSize(new Dimension(39, 39));
         rewindButton.setPreferredSize(new Dimension(39, 39));
@@ -971,6 +1013,13 @@ public class ControllerComponent extends JFrame implements ControllerGUI,
         notifyControllerListeners(ControllerEvent.FAST_FORWARD,null);
     }
 
+    /**
+     * Called when the step back button was pressed.
+     */
+    public void stepBackButton_actionPerformed(ActionEvent e) {
+        notifyControllerListeners(ControllerEvent.STEP_BACK, null);
+    }
+
     /**
      * Called when the rewind button was pressed.
      */
@@ -1175,6 +1224,13 @@ public class ControllerComponent extends JFrame implements ControllerGUI,
         notifyControllerListeners(ControllerEvent.SINGLE_STEP, null);
     }
 
+    /**
+     * Called when the step back menu item was selected.
+     */
+    public void stepBackMenuItem_actionPerformed(ActionEvent e) {
+        notifyControllerListeners(ControllerEvent.STEP_BACK, null);
+    }
+
     /**
      * Called when the fast forward menu item was selected.
      */
@@ -151,6 +151,13 @@ public abstract class InteractiveValueComputerPart extends ValueComputerPart
         return new int[]{startEnabledRange, endEnabledRange};
     }
 
+    /**
+     * Returns true if the given index is in the enabled range.
+     */
+    public boolean isInEnabledRange(int index) {
+        return index >= startEnabledRange && index <= endEnabledRange;
+    }
+
     /**
      * Sets the enabled range of this segment.
      * Any address outside this range will be disabled for user input.
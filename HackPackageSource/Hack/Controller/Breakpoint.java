@@ -31,6 +31,15 @@ public class Breakpoint {
     // The status of the breakpoint
     private boolean reached;
 
+    // The accessor of the variable (null if compared as strings)
+    private VariableAccessor accessor;
+
+    // The desired value as a number (valid if accessor isn't null)
+    private short shortValue;
+
+    // True if the breakpoint was compiled
+    private boolean compiled;
+
     /**
      * Constructs a new Breakpoint with the given variable name and desired value.
      */
@@ -54,6 +63,36 @@ public class Breakpoint {
         return value;
     }
 
+    /**
+     * Returns true if the variable currently has the desired value in the given
+     * simulator. On the first call, the breakpoint is compiled: if the simulator
+     * provides an accessor to the variable and the desired value is a number, the
+     * breakpoint is checked by comparing numbers, otherwise by comparing strings.
+     * Throws VariableException if the variable is not legal.
+     */
+    public boolean isMatched(HackSimulator simulator) throws VariableException {
+        if (!compiled) {
+            accessor = simulator.getVariableAccessor(varName);
+            if (accessor != null) {
+                try {
+                    int number = Integer.parseInt(value);
+                    shortValue = (short)number;
+                    // compare numbers only if that's the same as comparing strings
+                    if (number != shortValue || !String.valueOf(number).equals(value))
+                        accessor = null;
+                } catch (NumberFormatException nfe) {
+                    accessor = null;
+                }
+            }
+            compiled = true;
+        }
+
+        if (accessor != null)
+            return accessor.get() == shortValue;
+        else
+            return simulator.getValue(varName).equals(value);
+    }
+
     /**
      * sets the breakpoint "off" - puts it into "not reached" state.
      */
@@ -96,6 +96,11 @@ public class Command {
      */
     public static final byte CLEAR_ECHO_COMMAND = 14;
 
+    /**
+     * A backstep script command
+     */
+    public static final byte BACKSTEP_COMMAND = 15;
+
     // terminators
 
     /**
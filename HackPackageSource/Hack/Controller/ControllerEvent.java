@@ -176,6 +176,19 @@ public class ControllerEvent extends EventObject {
      */
     public static final byte LOAD_PROGRAM = 27;
 
+    /**
+     * Action code for stepping back a single step.
+     * supplied data = null
+     */
+    public static final byte STEP_BACK = 28;
+
+    /**
+     * Action code for notifying that the program reached a halt loop: an endless
+     * loop that can't change the state of the simulator anymore.
+     * supplied data = null
+     */
+    public static final byte PROGRAM_HALTED = 29;
+
     // the action code
     private byte action;
 
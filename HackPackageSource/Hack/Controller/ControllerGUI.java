@@ -199,6 +199,16 @@ public interface ControllerGUI {
      */
     public void disableRewind();
 
+    /**
+     * Enables the step back action.
+     */
+    public void enableStepBack();
+
+    /**
+     * Disables the step back action.
+     */
+    public void disableStepBack();
+
     /**
      * Enables the load program action.
      */
@@ -45,9 +45,11 @@ public class HackController
     public static final float[] SPEED_FUNCTION = {0f, 0.35f, 0.63f, 0.87f, 1f};
 
     /**
-     * The speed function for fast forward mode.
+     * The speed function for fast forward mode, in script commands per second
+     * (RateGovernor.UNLIMITED for as fast as possible).
      */
-    public static final int[] FASTFORWARD_SPEED_FUNCTION = {500, 1000, 2000, 4000, 15000};
+    public static final long[] FASTFORWARD_SPEED_FUNCTION = {500000, 1000000, 2000000, 4000000,
+                                                             RateGovernor.UNLIMITED};
 
     // ANIMATION MODES:
 
@@ -200,6 +202,12 @@ public class HackController
     // True if the program was halted.
     private boolean programHalted;
 
+    // True if the last simulator command left the program in a halt loop.
+    private boolean haltLoopReached;
+
+    // True if loops of simulator commands end once the program reaches a halt loop.
+    private boolean endHaltedLoops;
+
     // The speed delays.
     private int[] delays;
 
@@ -215,14 +223,32 @@ public class HackController
     // The default script file object
     private File defaultScriptFile;
 
+    // If true (and there's no GUI), messages are recorded instead of being printed,
+    // and errors stop the script instead of terminating the program.
+    private boolean batchMode;
+
+    // The last message and the first error message that were recorded in batch mode.
+    private String lastMessage, errorMessage;
+
     /**
      * Constructs a new HackController with the given script file name.
      * The script will be executed and the final result will be printed.
      */
     public HackController(HackSimulator simulator, String scriptFileName) {
-        File file = new File(scriptFileName);
+        this(simulator, new File(scriptFileName), false);
+        runScript();
+    }
+
+    /**
+     * Constructs a new HackController with the given script file and no GUI.
+     * The script is executed by runScript().
+     * In batch mode, messages are recorded instead of being printed, errors stop
+     * the script instead of terminating the program, and the working dir is not saved.
+     */
+    public HackController(HackSimulator simulator, File file, boolean batchMode) {
+        this.batchMode = batchMode;
         if (!file.exists())
-            displayMessage(scriptFileName + " doesn't exist", true);
+            displayMessage(file.getPath() + " doesn't exist", true);
 
         this.simulator = simulator;
         animationMode = NO_DISPLAY_CHANGES;
@@ -232,17 +258,61 @@ public class HackController
 
         try {
             loadNewScript(file, false);
-            saveWorkingDir(file);
+            if (batchMode)
+                simulator.setWorkingDir(file);
+            else
+                saveWorkingDir(file);
         } catch (ScriptException se) {
             displayMessage(se.getMessage(), true);
         } catch (ControllerException ce) {
             displayMessage(ce.getMessage(), true);
         }
+    }
 
-        fastForwardRunning = true;
+    /**
+     * Executes the script (with no GUI) until it ends or stops.
+     * Returns true if the script ended with no errors and no comparison failures.
+     */
+    public boolean runScript() {
+        fastForwardRunning = (script != null);
 
         while (fastForwardRunning)
             singleStep();
+
+        if (output != null)
+            output.close();
+
+        try {
+            if (comparisonFile != null)
+                comparisonFile.close();
+        } catch (IOException ioe) {}
+
+        return scriptEnded && errorMessage == null && !comparisonFailed;
+    }
+
+    /**
+     * Sets whether a repeat or while loop that has only simulator commands ends
+     * once the program reaches a halt loop, instead of running all its iterations.
+     * This saves time on halted programs, but leaves the time (and PC) lower than
+     * the full loop would, so it is off by default.
+     */
+    public void setEndHaltedLoops(boolean endHaltedLoops) {
+        this.endHaltedLoops = endHaltedLoops;
+    }
+
+    /**
+     * Returns the first error message that was recorded in batch mode, or null
+     * if there was none.
+     */
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    /**
+     * Returns the last (non error) message that was recorded in batch mode.
+     */
+    public String getLastMessage() {
+        return lastMessage;
     }
 
     /**
@@ -306,6 +376,7 @@ public class HackController
             }
             scriptEnded = false;
             programHalted = false;
+            haltLoopReached = false;
 
             int oldAnimationMode = animationMode;
             setAnimationMode(DISPLAY_CHANGES);
@@ -327,6 +398,24 @@ public class HackController
         }
     }
 
+    // Undoes the last step of the simulator.
+    private void stepBack() {
+        try {
+            simulator.stepBack(1);
+            refreshSimulator();
+        } catch (ProgramException pe) {
+            displayMessage(pe.getMessage(), true);
+        }
+    }
+
+    // Enables the step back action if the simulator can step back, otherwise disables it.
+    private void enableStepBack() {
+        if (simulator.canStepBack())
+            gui.enableStepBack();
+        else
+            gui.disableStepBack();
+    }
+
     // Puts the controller into stop mode
     private void stopMode() {
         if (fastForwardRunning) {
@@ -344,6 +433,7 @@ public class HackController
             gui.enableFastForward();
             gui.enableScript();
             gui.enableRewind();
+            enableStepBack();
             gui.disableStop();
             gui.enableAnimationModes();
 
@@ -359,6 +449,7 @@ public class HackController
         gui.enableStop();
         gui.disableSingleStep();
         gui.disableRewind();
+        gui.disableStepBack();
         gui.disableScript();
         gui.disableFastForward();
         gui.disableAnimationModes();
@@ -401,21 +492,23 @@ public class HackController
             // Check Breakpoints
             for (int i = 0; i < breakpoints.size(); i++) {
                 Breakpoint breakpoint = (Breakpoint)breakpoints.elementAt(i);
-                String currentValue = simulator.getValue(breakpoint.getVarName());
-                if (currentValue.equals(breakpoint.getValue())) {
+                if (breakpoint.isMatched(simulator)) {
                     // if value is equal and the breakpoint wasn't reached before, turn it on
                     if (!breakpoint.isReached()) {
                         breakpoint.on();
-                        gui.setBreakpoints(breakpoints);
+                        if (gui != null)
+                            gui.setBreakpoints(breakpoints);
                         displayMessage("Breakpoint reached", false);
-                        gui.showBreakpoints();
+                        if (gui != null)
+                            gui.showBreakpoints();
                         stopMode();
                     }
                 }
                 // if the value is not equal and the breakpoint was reached before, turn it off
                 else if (breakpoint.isReached()) {
                     breakpoint.off();
-                    gui.setBreakpoints(breakpoints);
+                    if (gui != null)
+                        gui.setBreakpoints(breakpoints);
                 }
             }
         } catch (ControllerException ce) {
@@ -448,9 +541,11 @@ public class HackController
         do {
             command = script.getCommandAt(currentCommandIndex);
             redo = false;
+            Metrics.scriptCommands.increment();
 
             switch (command.getCode()) {
             case Command.SIMULATOR_COMMAND:
+                haltLoopReached = false;
                 simulator.doCommand((String[])command.getArg());
                 break;
             case Command.OUTPUT_FILE_COMMAND:
@@ -477,6 +572,9 @@ public class HackController
             case Command.CLEAR_BREAKPOINTS_COMMAND:
                 doClearBreakpointsCommand(command);
                 break;
+            case Command.BACKSTEP_COMMAND:
+                simulator.stepBack(((Integer)command.getArg()).intValue());
+                break;
             case Command.REPEAT_COMMAND:
                 repeatCounter = ((Integer)command.getArg()).intValue();
                 loopCommandIndex = currentCommandIndex + 1;
@@ -496,6 +594,7 @@ public class HackController
             case Command.END_SCRIPT_COMMAND:
                 scriptEnded = true;
                 stopMode();
+                simulator.scriptEnded();
 
                 if (gui != null) {
                     gui.disableSingleStep();
@@ -530,13 +629,15 @@ public class HackController
                 currentCommandIndex++;
                 Command nextCommand = script.getCommandAt(currentCommandIndex);
                 if (nextCommand.getCode() == Command.END_REPEAT_COMMAND) {
-                    if (repeatCounter == 0 || --repeatCounter > 0)
+                    if (isHaltedLoop())
+                        currentCommandIndex++;
+                    else if (repeatCounter == 0 || --repeatCounter > 0)
                         currentCommandIndex = loopCommandIndex;
                     else
                         currentCommandIndex++;
                 }
                 else if (nextCommand.getCode() == Command.END_WHILE_COMMAND) {
-                    if (whileCondititon.compare(simulator))
+                    if (!isHaltedLoop() && whileCondititon.compare(simulator))
                         currentCommandIndex = loopCommandIndex;
                     else
                         currentCommandIndex++;
@@ -551,6 +652,20 @@ public class HackController
         return command.getTerminator();
     }
 
+    // Returns true if the current loop can end since ending halted loops is enabled,
+    // the program reached a halt loop and further iterations can't change anything
+    // but the time: the loop has only simulator commands.
+    private boolean isHaltedLoop() {
+        if (!endHaltedLoops || !haltLoopReached)
+            return false;
+
+        for (int i = loopCommandIndex; i < currentCommandIndex; i++)
+            if (script.getCommandAt(i).getCode() != Command.SIMULATOR_COMMAND)
+                return false;
+
+        return true;
+    }
+
     // Executes the controller's output-file command.
     private void doOutputFileCommand(Command command) throws ControllerException {
         currentOutputName = currentScriptFile.getParent() + "/" + (String)command.getArg();
@@ -649,14 +764,16 @@ public class HackController
         if (!breakpointExists(breakpoints, breakpoint)) {
             breakpoints.addElement(breakpoint);
 
-            gui.setBreakpoints(breakpoints);
+            if (gui != null)
+                gui.setBreakpoints(breakpoints);
         }
     }
 
     // Executes the controller's clear-breakpoints command.
     private void doClearBreakpointsCommand(Command command) throws ControllerException {
         breakpoints.removeAllElements();
-        gui.setBreakpoints(breakpoints);
+        if (gui != null)
+            gui.setBreakpoints(breakpoints);
     }
 
     // Compares an output line with a template line from a compare file.
@@ -725,6 +842,13 @@ public class HackController
         comparisonFile = null;
         currentComparisonName = "";
 
+        for (int i = 0; i < script.getLength(); i++) {
+            if (script.getCommandAt(i).getCode() == Command.BACKSTEP_COMMAND) {
+                simulator.prepareStepBack();
+                break;
+            }
+        }
+
         if (gui != null) {
             gui.setOutputFile("");
             gui.setComparisonFile("");
@@ -852,6 +976,12 @@ public class HackController
     private void displayMessage(String message, boolean error) {
         if (gui != null)
             gui.displayMessage(message, error);
+        else if (batchMode) {
+            if (!error)
+                lastMessage = message;
+            else if (errorMessage == null)
+                errorMessage = message;
+        }
         else {
             if (error) {
                 System.err.println(message);
@@ -954,6 +1084,7 @@ public class HackController
                     gui.disableFastForward();
                     gui.disableScript();
                     gui.disableRewind();
+                    gui.disableStepBack();
                     gui.enableStop();
                     Thread t = new Thread(singleStepTask);
                     t.start();
@@ -971,6 +1102,10 @@ public class HackController
                     displayMessage("Script restarted", false);
                     rewind();
                     break;
+                case ControllerEvent.STEP_BACK:
+                    displayMessage("", false);
+                    stepBack();
+                    break;
                 case ControllerEvent.SPEED_CHANGE:
                     setSpeed(((Integer)event.getData()).intValue());
                     break;
@@ -1018,6 +1153,9 @@ public class HackController
                 case ControllerEvent.LOAD_PROGRAM:
                     simulator.loadProgram();
                     break;
+                case ControllerEvent.PROGRAM_HALTED:
+                    haltLoopReached = true;
+                    break;
                 case ControllerEvent.HALT_PROGRAM:
                     displayMessage("End of program", false);
                     programHalted = true;
@@ -1037,11 +1175,13 @@ public class HackController
                     gui.disableSingleStep();
                     gui.disableFastForward();
                     gui.disableRewind();
+                    gui.disableStepBack();
                     break;
                 case ControllerEvent.ENABLE_MOVEMENT:
                     gui.enableSingleStep();
                     gui.enableFastForward();
                     gui.enableRewind();
+                    enableStepBack();
                     break;
                 case ControllerEvent.DISPLAY_MESSAGE:
                     displayMessage((String)event.getData(), false);
@@ -1084,6 +1224,7 @@ public class HackController
                 }
                 gui.enableScript();
                 gui.enableRewind();
+                enableStepBack();
             }
 
             if (animationMode == NO_DISPLAY_CHANGES) {
@@ -1095,29 +1236,19 @@ public class HackController
 
     // Performs the fast forward task
     class FastForwardTask implements Runnable {
-        public synchronized void run() {
-            try {
-                System.runFinalization();
-                System.gc();
-                wait(300);
-            } catch (InterruptedException ie) {
-            }
-
+        public void run() {
+            RateGovernor governor = new RateGovernor(FASTFORWARD_SPEED_FUNCTION[currentSpeedUnit - 1]);
+            int batchSize = governor.getBatchSize();
             int count = 0;
-            int rounds = FASTFORWARD_SPEED_FUNCTION[currentSpeedUnit - 1];
 
             while (fastForwardRunning) {
                 singleStep();
 
-                // waits for 1 ms each constant amount of commands
-                if (count == rounds) {
+                // paces the commands to the speed's rate after each batch
+                if (++count == batchSize) {
+                    governor.pace(count);
                     count = 0;
-                    try {
-                        wait(1);
-                    } catch (InterruptedException ie) {}
                 }
-
-                count++;
             }
         }
     }
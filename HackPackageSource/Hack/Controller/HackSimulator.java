@@ -61,6 +61,17 @@ public abstract class HackSimulator implements ProgramEventListener, ComputerPar
      */
     public abstract void setValue(String varName, String value) throws VariableException;
 
+    /**
+     * Returns an accessor to the given variable, for fast repeated reads of its value,
+     * or null if the variable doesn't have a 16-bit value (or the simulator doesn't
+     * provide accessors). The value read through the accessor is always equal to
+     * the value returned by getValue().
+     * Throws VariableException if the variable name is not legal.
+     */
+    public VariableAccessor getVariableAccessor(String varName) throws VariableException {
+        return null;
+    }
+
     /**
      * Executes the given simulator command (given in args[] style).
      * Throws CommandException if the command is not legal.
@@ -112,6 +123,36 @@ public abstract class HackSimulator implements ProgramEventListener, ComputerPar
      */
     public abstract String[] getVariables();
 
+    /**
+     * Called by the controller when the script ends.
+     * Throws ProgramException if an error occurs while finishing the program's run.
+     */
+    public void scriptEnded() throws ProgramException {
+    }
+
+    /**
+     * Returns true if the simulator records its history and can step back.
+     */
+    public boolean canStepBack() {
+        return false;
+    }
+
+    /**
+     * Called by the controller when a script that steps back is loaded.
+     * A simulator that can record its history but doesn't should start
+     * recording it.
+     */
+    public void prepareStepBack() {
+    }
+
+    /**
+     * Undoes the effects of the last given number of steps.
+     * Throws ProgramException if the simulator can't step back that many steps.
+     */
+    public void stepBack(int count) throws ProgramException {
+        throw new ProgramException(getName() + " can't step back");
+    }
+
     /**
      * Returns the initial animation mode of the simulator.
      */
@@ -0,0 +1,135 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.Controller;
+
+/**
+ * Paces a run loop to a target rate of steps (instructions or script commands)
+ * per second. The loop runs a batch of steps, then calls pace(), which sleeps until
+ * the time at which those steps are due. Since the due time is computed from the
+ * start of the run rather than from the previous batch, oversleeping and slow
+ * batches are compensated for by the following batches. If the loop falls too far
+ * behind (the machine is too slow for the rate), the governor restarts from the
+ * current time instead of bursting to catch up.
+ * The governor also measures the achieved rate.
+ */
+public class RateGovernor {
+
+    /**
+     * The rate that means running as fast as possible.
+     */
+    public static final long UNLIMITED = 0;
+
+    // The number of steps in a batch with an unlimited rate
+    private static final int UNLIMITED_BATCH_SIZE = 100000;
+
+    // The lag (in nanoseconds) after which the governor restarts
+    private static final long MAX_LAG = 100000000L;
+
+    // The interval (in nanoseconds) over which the achieved rate is measured
+    private static final long MEASURE_INTERVAL = 1000000000L;
+
+    // The target rate in steps per second (or UNLIMITED)
+    private long rate;
+
+    // The start time of pacing and the number of steps since then
+    private long startTime;
+    private long count;
+
+    // The start time of the current measurement and the number of steps since then
+    private long measureStartTime;
+    private long measureCount;
+
+    // The rate achieved in the last measurement
+    private long achievedRate;
+
+    /**
+     * Constructs a new governor with the given rate in steps per second
+     * (or UNLIMITED), starting at the current time.
+     */
+    public RateGovernor(long rate) {
+        setRate(rate);
+        measureStartTime = startTime;
+    }
+
+    /**
+     * Sets the target rate in steps per second (or UNLIMITED), starting at the current time.
+     */
+    public void setRate(long rate) {
+        this.rate = rate;
+        startTime = System.nanoTime();
+        count = 0;
+    }
+
+    /**
+     * Returns the target rate in steps per second (or UNLIMITED).
+     */
+    public long getRate() {
+        return rate;
+    }
+
+    /**
+     * Returns the number of steps that should run between calls to pace(),
+     * which is about a millisecond worth of steps.
+     */
+    public int getBatchSize() {
+        if (rate == UNLIMITED)
+            return UNLIMITED_BATCH_SIZE;
+        return (int)Math.max(1, Math.min(rate / 1000, UNLIMITED_BATCH_SIZE));
+    }
+
+    /**
+     * Accounts for the given number of executed steps, and sleeps until they are
+     * due according to the rate. With an unlimited rate, only yields to other threads.
+     */
+    public void pace(int steps) {
+        count += steps;
+        measureCount += steps;
+
+        long now = System.nanoTime();
+        if (now - measureStartTime >= MEASURE_INTERVAL) {
+            achievedRate = (long)(measureCount * 1e9 / (now - measureStartTime));
+            measureStartTime = now;
+            measureCount = 0;
+        }
+
+        if (rate == UNLIMITED) {
+            Thread.yield();
+            return;
+        }
+
+        long ahead = startTime + (long)(count * 1e9 / rate) - now;
+        if (ahead > 0) {
+            try {
+                Thread.sleep(ahead / 1000000, (int)(ahead % 1000000));
+            } catch (InterruptedException ie) {
+            }
+        }
+        else if (-ahead > MAX_LAG) {
+            startTime = now;
+            count = 0;
+        }
+    }
+
+    /**
+     * Returns the rate (in steps per second) that was achieved in the last second,
+     * or 0 if a second hasn't passed yet.
+     */
+    public long getAchievedRate() {
+        return achievedRate;
+    }
+}
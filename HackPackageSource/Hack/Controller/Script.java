@@ -216,6 +216,9 @@ public class Script {
         case ScriptTokenizer.KW_WHILE:
             command = createWhileCommand();
             break;
+        case ScriptTokenizer.KW_BACKSTEP:
+            command = createBackstepCommand();
+            break;
         }
 
         return command;
@@ -371,6 +374,24 @@ public class Script {
         return new Command(Command.CLEAR_BREAKPOINTS_COMMAND);
     }
 
+    // creates and returns a controller backstep command.
+    // Holds the number of steps (Integer) as an argument.
+    private Command createBackstepCommand()
+     throws ScriptException, ControllerException {
+        input.advance();
+        int steps = 1;
+
+        if (input.getTokenType() == ScriptTokenizer.TYPE_INT_CONST) {
+            steps = input.getIntValue();
+            if (steps < 1)
+                scriptError("Illegal backstep quantity");
+            input.advance();
+        }
+
+        checkTerminator();
+        return new Command(Command.BACKSTEP_COMMAND, Integer.valueOf(steps));
+    }
+
     // creates and returns a controller repeat command.
     // Holds the repeat quantity (Integer) as an argument.
     private Command createRepeatCommand()
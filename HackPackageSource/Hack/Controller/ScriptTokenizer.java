@@ -101,6 +101,11 @@ public class ScriptTokenizer {
      */
     public static final int KW_CLEAR_ECHO	         = 10;
 
+    /**
+     * backstep script keyword
+     */
+    public static final int KW_BACKSTEP		 = 11;
+
     // The parser
     private StreamTokenizer parser;
 
@@ -278,6 +283,7 @@ public class ScriptTokenizer {
         keywords.put("clear-breakpoints",new Integer(KW_CLEAR_BREAKPOINTS));
         keywords.put("repeat",new Integer(KW_REPEAT));
         keywords.put("while",new Integer(KW_WHILE));
+        keywords.put("backstep",Integer.valueOf(KW_BACKSTEP));
     }
 
     // Initializes the symbols hashtable
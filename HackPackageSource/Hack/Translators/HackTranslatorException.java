@@ -19,11 +19,15 @@ package Hack.Translators;
 
 public class HackTranslatorException extends Exception {
 
+    // The message, without the line number
+    private String description;
+
     /**
      * Constructs a new HackTranslatorException with the given message.
      */
     public HackTranslatorException(String message) {
         super(message);
+        description = message;
     }
 
     /**
@@ -31,5 +35,13 @@ public class HackTranslatorException extends Exception {
      */
     public HackTranslatorException(String message, int lineNumber) {
         super("In line " + lineNumber + ", " + message);
+        description = message;
+    }
+
+    /**
+     * Returns the message of the exception without its line number.
+     */
+    public String getDescription() {
+        return description;
     }
 }
@@ -0,0 +1,141 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.Utilities;
+
+/**
+ * A table-driven ALU. The 7-bit comp field of a Hack instruction (the a bit followed
+ * by the six control bits zx, nx, zy, ny, f, no) is resolved once into a specialized
+ * operation, so computing the ALU function takes a table lookup and a single switch
+ * instead of testing each control bit.
+ * The a bit only selects whether the y input is A or M, so it does not affect the
+ * resolved operation. Control codes that have no mnemonic are computed from their bits.
+ */
+public class ALUTable {
+
+    // The specialized operations
+    private static final byte GENERIC = 0;
+    private static final byte ZERO = 1;
+    private static final byte ONE = 2;
+    private static final byte MINUS_ONE = 3;
+    private static final byte X = 4;
+    private static final byte Y = 5;
+    private static final byte NOT_X = 6;
+    private static final byte NOT_Y = 7;
+    private static final byte MINUS_X = 8;
+    private static final byte MINUS_Y = 9;
+    private static final byte X_PLUS_ONE = 10;
+    private static final byte Y_PLUS_ONE = 11;
+    private static final byte X_MINUS_ONE = 12;
+    private static final byte Y_MINUS_ONE = 13;
+    private static final byte X_PLUS_Y = 14;
+    private static final byte X_MINUS_Y = 15;
+    private static final byte Y_MINUS_X = 16;
+    private static final byte X_AND_Y = 17;
+    private static final byte X_OR_Y = 18;
+
+    // The operation of each 7-bit comp field
+    private static final byte[] operations = new byte[128];
+
+    static {
+        byte[] control = new byte[64];
+        control[0x2a] = ZERO;
+        control[0x3f] = ONE;
+        control[0x3a] = MINUS_ONE;
+        control[0x0c] = X;
+        control[0x30] = Y;
+        control[0x0d] = NOT_X;
+        control[0x31] = NOT_Y;
+        control[0x0f] = MINUS_X;
+        control[0x33] = MINUS_Y;
+        control[0x1f] = X_PLUS_ONE;
+        control[0x37] = Y_PLUS_ONE;
+        control[0x0e] = X_MINUS_ONE;
+        control[0x32] = Y_MINUS_ONE;
+        control[0x02] = X_PLUS_Y;
+        control[0x13] = X_MINUS_Y;
+        control[0x07] = Y_MINUS_X;
+        control[0x00] = X_AND_Y;
+        control[0x15] = X_OR_Y;
+
+        for (int comp = 0; comp < operations.length; comp++)
+            operations[comp] = control[comp & 0x3f];
+    }
+
+    /**
+     * Computes the ALU function of the given comp field (7 bits: a, zx, nx, zy, ny,
+     * f, no) on the given x (D) and y (A or M) inputs and returns the result.
+     */
+    public static short compute(int comp, int x, int y) {
+        int result;
+
+        switch (operations[comp & 0x7f]) {
+            case ZERO: result = 0; break;
+            case ONE: result = 1; break;
+            case MINUS_ONE: result = -1; break;
+            case X: result = x; break;
+            case Y: result = y; break;
+            case NOT_X: result = ~x; break;
+            case NOT_Y: result = ~y; break;
+            case MINUS_X: result = -x; break;
+            case MINUS_Y: result = -y; break;
+            case X_PLUS_ONE: result = x + 1; break;
+            case Y_PLUS_ONE: result = y + 1; break;
+            case X_MINUS_ONE: result = x - 1; break;
+            case Y_MINUS_ONE: result = y - 1; break;
+            case X_PLUS_Y: result = x + y; break;
+            case X_MINUS_Y: result = x - y; break;
+            case Y_MINUS_X: result = y - x; break;
+            case X_AND_Y: result = x & y; break;
+            case X_OR_Y: result = x | y; break;
+            default: result = computeByBits(comp, x, y);
+        }
+
+        return (short)result;
+    }
+
+    /**
+     * Computes the ALU function of the given six control bits
+     * (zx, nx, zy, ny, f, no) on the given inputs and returns the result.
+     */
+    public static short computeByControl(int zx, int nx, int zy, int ny, int f, int no,
+                                         int x, int y) {
+        return compute((zx << 5) | (nx << 4) | (zy << 3) | (ny << 2) | (f << 1) | no, x, y);
+    }
+
+    // Computes the ALU function of a comp field that has no specialized operation.
+    private static int computeByBits(int comp, int x, int y) {
+        int result;
+
+        if ((comp & 0x20) != 0)
+            x = 0;
+        if ((comp & 0x10) != 0)
+            x = ~x;
+        if ((comp & 0x08) != 0)
+            y = 0;
+        if ((comp & 0x04) != 0)
+            y = ~y;
+        if ((comp & 0x02) != 0)
+            result = x + y;
+        else
+            result = x & y;
+        if ((comp & 0x01) != 0)
+            result = ~result;
+
+        return result;
+    }
+}
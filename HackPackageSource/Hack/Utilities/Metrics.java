@@ -0,0 +1,287 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.Utilities;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+/**
+ * Throughput counters of the simulators. The simulators increment the public
+ * counters directly and without synchronization, so counting costs next to nothing
+ * and a reader may see slightly stale values. The counters that several batch
+ * workers update at once are LongAdders, so that no counts are lost. Rates are
+ * computed only when someone reads them, from the change in the counters since the
+ * last sample.
+ *
+ * The metrics are registered as a JMX MBean named "Hack:type=Metrics" only when
+ * register() is called, or when the system property "hack.metrics.jmx" is set to
+ * true. If the system property "hack.metrics.interval" is set to a number of
+ * seconds, the metrics are registered and the rates are also printed to the
+ * standard error at that interval.
+ */
+public class Metrics implements MetricsMBean {
+
+    /**
+     * The name of the metrics MBean.
+     */
+    public static final String OBJECT_NAME = "Hack:type=Metrics";
+
+    /**
+     * The name of the system property with the log interval in seconds.
+     */
+    public static final String LOG_INTERVAL_PROPERTY = "hack.metrics.interval";
+
+    /**
+     * The name of the system property that registers the MBean when set to true.
+     */
+    public static final String JMX_PROPERTY = "hack.metrics.jmx";
+
+    /**
+     * The instructions executed by the Hack CPU emulator.
+     */
+    public static final LongAdder cpuInstructions = new LongAdder();
+
+    /**
+     * The instructions executed by the VM emulator.
+     */
+    public static long vmInstructions;
+
+    /**
+     * The function calls executed by the VM emulator.
+     */
+    public static long vmCalls;
+
+    /**
+     * The clock cycles (tocks) of the hardware simulator.
+     */
+    public static long hardwareTicks;
+
+    /**
+     * The gate evaluations of the hardware simulator.
+     */
+    public static long gateEvaluations;
+
+    /**
+     * The repaints of the screen GUI.
+     */
+    public static long screenRepaints;
+
+    /**
+     * The script commands executed by the controller.
+     */
+    public static final LongAdder scriptCommands = new LongAdder();
+
+    // The minimal interval (in nanoseconds) between samples
+    private static final long SAMPLE_INTERVAL = 1000000000L;
+
+    // The indices of the counters in a sample
+    private static final int CPU_INSTRUCTIONS = 0;
+    private static final int VM_INSTRUCTIONS = 1;
+    private static final int VM_CALLS = 2;
+    private static final int HARDWARE_TICKS = 3;
+    private static final int GATE_EVALUATIONS = 4;
+    private static final int SCREEN_REPAINTS = 5;
+    private static final int SCRIPT_COMMANDS = 6;
+    private static final int NUMBER_OF_COUNTERS = 7;
+
+    // The names of the counters in the log line
+    private static final String[] names = {"cpu instructions", "vm instructions", "vm calls",
+                                           "hardware ticks", "gate evaluations", "screen repaints",
+                                           "script commands"};
+
+    // The single instance
+    private static final Metrics instance = new Metrics();
+
+    static {
+        if (Boolean.getBoolean(JMX_PROPERTY) || System.getProperty(LOG_INTERVAL_PROPERTY) != null)
+            register();
+    }
+
+    // True once the MBean registration was started
+    private static boolean registered;
+
+    // The counters at the last sample, and the time of the last sample
+    private long[] lastCounts;
+    private long lastSampleTime;
+
+    // The rates computed at the last sample
+    private long[] rates;
+
+    // Constructs the metrics.
+    private Metrics() {
+        lastCounts = getCounts();
+        lastSampleTime = System.nanoTime();
+        rates = new long[NUMBER_OF_COUNTERS];
+    }
+
+    /**
+     * Returns the single instance of the metrics.
+     */
+    public static Metrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * Registers the metrics MBean, and starts the log if requested, unless they
+     * were already registered. Registers on another thread, so that the caller
+     * doesn't wait for JMX.
+     */
+    public static synchronized void register() {
+        if (registered)
+            return;
+
+        registered = true;
+        Thread registerThread = new Thread(new Runnable() {
+            public void run() {
+                instance.registerMBean();
+            }
+        });
+        registerThread.setDaemon(true);
+        registerThread.start();
+    }
+
+    public long getCpuInstructions() {
+        return cpuInstructions.sum();
+    }
+
+    public long getCpuInstructionsPerSecond() {
+        return getRate(CPU_INSTRUCTIONS);
+    }
+
+    public long getVmInstructions() {
+        return vmInstructions;
+    }
+
+    public long getVmInstructionsPerSecond() {
+        return getRate(VM_INSTRUCTIONS);
+    }
+
+    public long getVmCalls() {
+        return vmCalls;
+    }
+
+    public long getVmCallsPerSecond() {
+        return getRate(VM_CALLS);
+    }
+
+    public long getHardwareTicks() {
+        return hardwareTicks;
+    }
+
+    public long getHardwareTicksPerSecond() {
+        return getRate(HARDWARE_TICKS);
+    }
+
+    public long getGateEvaluations() {
+        return gateEvaluations;
+    }
+
+    public long getGateEvaluationsPerSecond() {
+        return getRate(GATE_EVALUATIONS);
+    }
+
+    public long getScreenRepaints() {
+        return screenRepaints;
+    }
+
+    public long getScreenRepaintsPerSecond() {
+        return getRate(SCREEN_REPAINTS);
+    }
+
+    public long getScriptCommands() {
+        return scriptCommands.sum();
+    }
+
+    public long getScriptCommandsPerSecond() {
+        return getRate(SCRIPT_COMMANDS);
+    }
+
+    /**
+     * Returns a line with the current rates of all the counters.
+     */
+    public synchronized String getRatesLine() {
+        sample(SAMPLE_INTERVAL);
+        StringBuffer line = new StringBuffer("Metrics:");
+        for (int i = 0; i < NUMBER_OF_COUNTERS; i++) {
+            line.append(i == 0 ? " " : ", ");
+            line.append(names[i]).append(' ').append(rates[i]).append("/s");
+        }
+        return line.toString();
+    }
+
+    // Returns the rate of the counter at the given index, sampling if needed.
+    private synchronized long getRate(int index) {
+        sample(SAMPLE_INTERVAL);
+        return rates[index];
+    }
+
+    // Computes the rates if at least the given interval passed since the last sample.
+    private void sample(long interval) {
+        long now = System.nanoTime();
+        long elapsed = now - lastSampleTime;
+        if (elapsed < interval)
+            return;
+
+        long[] counts = getCounts();
+        for (int i = 0; i < NUMBER_OF_COUNTERS; i++)
+            rates[i] = (long)((counts[i] - lastCounts[i]) * 1e9 / elapsed);
+        lastCounts = counts;
+        lastSampleTime = now;
+    }
+
+    // Returns the current values of the counters.
+    private static long[] getCounts() {
+        return new long[] {cpuInstructions.sum(), vmInstructions, vmCalls, hardwareTicks,
+                           gateEvaluations, screenRepaints, scriptCommands.sum()};
+    }
+
+    // Registers the MBean and starts the log if requested.
+    private void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (Exception e) {
+            System.err.println("Can't register metrics: " + e.getMessage());
+        }
+
+        String property = System.getProperty(LOG_INTERVAL_PROPERTY);
+        if (property == null)
+            return;
+
+        long interval;
+        try {
+            interval = (long)(Double.parseDouble(property) * 1000);
+        } catch (NumberFormatException nfe) {
+            System.err.println("Illegal " + LOG_INTERVAL_PROPERTY + ": " + property);
+            return;
+        }
+
+        while (interval > 0) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException ie) {
+                return;
+            }
+
+            synchronized (this) {
+                sample(0);
+                System.err.println(getRatesLine());
+            }
+        }
+    }
+}
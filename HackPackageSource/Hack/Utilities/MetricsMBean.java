@@ -0,0 +1,53 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.Utilities;
+
+/**
+ * The management interface of the simulators' metrics. Each counter is the total
+ * since the program started, and each rate is per second over the last second.
+ */
+public interface MetricsMBean {
+
+    public long getCpuInstructions();
+
+    public long getCpuInstructionsPerSecond();
+
+    public long getVmInstructions();
+
+    public long getVmInstructionsPerSecond();
+
+    public long getVmCalls();
+
+    public long getVmCallsPerSecond();
+
+    public long getHardwareTicks();
+
+    public long getHardwareTicksPerSecond();
+
+    public long getGateEvaluations();
+
+    public long getGateEvaluationsPerSecond();
+
+    public long getScreenRepaints();
+
+    public long getScreenRepaintsPerSecond();
+
+    public long getScriptCommands();
+
+    public long getScriptCommandsPerSecond();
+}
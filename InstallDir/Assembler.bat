@@ -0,0 +1,2 @@
+@echo off
+java -classpath "%CLASSPATH%;%~dp0bin/classes;%~dp0bin/lib/Hack.jar;%~dp0bin/lib/HackGUI.jar;%~dp0bin/lib/Simulators.jar;%~dp0bin/lib/SimulatorsGUI.jar;%~dp0bin/lib/Compilers.jar" HackAssemblerMain %*
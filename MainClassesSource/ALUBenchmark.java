@@ -0,0 +1,119 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+import java.util.Random;
+import Hack.Utilities.*;
+
+/**
+ * A microbenchmark of the ALU. Computes a stream of legal comp fields once by
+ * unpacking the six control bits (as the CPU emulator used to) and once through
+ * the table-driven ALUTable, and prints the cost per instruction of each.
+ * The stream repeats a random loop body, as a running program does.
+ */
+public class ALUBenchmark {
+
+    // The legal 7-bit comp fields
+    private static final int[] LEGAL_COMPS = {
+        0x2a, 0x3f, 0x3a, 0x0c, 0x30, 0x0d, 0x31, 0x0f, 0x33, 0x1f, 0x37, 0x0e, 0x32, 0x02,
+        0x13, 0x07, 0x00, 0x15, 0x70, 0x71, 0x73, 0x77, 0x72, 0x42, 0x53, 0x47, 0x40, 0x55};
+
+    // The number of instructions in the stream
+    private static final int STREAM_SIZE = 1 << 16;
+
+    // The number of instructions in the repeated loop body
+    private static final int LOOP_SIZE = 256;
+
+    // The number of passes over the stream in each round
+    private static final int PASSES = 500;
+
+    /**
+     * The command line ALU benchmark program.
+     */
+    public static void main(String[] args) {
+        Random random = new Random(0);
+        short[] instructions = new short[STREAM_SIZE];
+        short[] inputs = new short[STREAM_SIZE];
+        for (int i = 0; i < STREAM_SIZE; i++) {
+            if (i < LOOP_SIZE)
+                instructions[i] = (short)(0xe000 |
+                                          (LEGAL_COMPS[random.nextInt(LEGAL_COMPS.length)] << 6));
+            else
+                instructions[i] = instructions[i % LOOP_SIZE];
+            inputs[i] = (short)random.nextInt();
+        }
+
+        for (int round = 1; round <= 5; round++) {
+            long start = System.nanoTime();
+            int sum = runControlBits(instructions, inputs);
+            long bitsTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            sum -= runTable(instructions, inputs);
+            long tableTime = System.nanoTime() - start;
+
+            if (sum != 0)
+                System.err.println("Results differ");
+
+            double count = (double)STREAM_SIZE * PASSES;
+            System.out.println("Round " + round + ": control bits " +
+                               format(bitsTime / count) + " ns/instruction, table " +
+                               format(tableTime / count) + " ns/instruction");
+        }
+    }
+
+    // Computes the stream by unpacking the control bits of each instruction.
+    private static int runControlBits(short[] instructions, short[] inputs) {
+        int sum = 0;
+        short d = 0;
+
+        for (int pass = 0; pass < PASSES; pass++) {
+            for (int i = 0; i < instructions.length; i++) {
+                short instruction = instructions[i];
+                boolean zd = (instruction & 0x0800) > 0;
+                boolean nd = (instruction & 0x0400) > 0;
+                boolean zm = (instruction & 0x0200) > 0;
+                boolean nm = (instruction & 0x0100) > 0;
+                boolean f = (instruction & 0x0080) > 0;
+                boolean no = (instruction & 0x0040) > 0;
+                d = Definitions.computeALU(d, inputs[i], zd, nd, zm, nm, f, no);
+                sum += d;
+            }
+        }
+
+        return sum;
+    }
+
+    // Computes the stream through the table-driven ALU.
+    private static int runTable(short[] instructions, short[] inputs) {
+        int sum = 0;
+        short d = 0;
+
+        for (int pass = 0; pass < PASSES; pass++) {
+            for (int i = 0; i < instructions.length; i++) {
+                d = ALUTable.compute(instructions[i] >> 6, d, inputs[i]);
+                sum += d;
+            }
+        }
+
+        return sum;
+    }
+
+    // Formats the given number with two decimal digits.
+    private static String format(double value) {
+        return String.valueOf(Math.round(value * 100) / 100.0);
+    }
+}
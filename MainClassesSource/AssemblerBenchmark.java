@@ -0,0 +1,177 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+import java.io.*;
+import java.util.Random;
+import Hack.Assembler.*;
+
+/**
+ * A benchmark of the assembler on a generated file of a million lines.
+ * Translates the commands of the file once with an AssemblyLineTokenizer per line
+ * (as textToCode used to) and once through the allocation-free encoder, and then
+ * assembles the whole file with the HackAssembler, the SinglePassAssembler and the
+ * ParallelAssembler on all the available processors. Prints the cost of each.
+ */
+public class AssemblerBenchmark {
+
+    // The number of lines in the generated file
+    private static final int LINES = 1000000;
+
+    // The compute-store-jump commands of the generated file
+    private static final String[] COMMANDS = {
+        "D=M", "A=M", "M=D", "AM=M-1", "M=M+1", "D=D+A", "D=M-D", "M=-1", "M=0",
+        "D;JNE", "D;JEQ", "0;JMP", "A=A-1", "M=!M", "D=D&M", "D=D|M", "M = D + M"};
+
+    /**
+     * The command line assembler benchmark program.
+     */
+    public static void main(String[] args) {
+        try {
+            File file = File.createTempFile("benchmark", ".asm");
+            file.deleteOnExit();
+            String[] commands = generate(file);
+
+            HackAssemblerTranslator translator = HackAssemblerTranslator.getInstance();
+            for (int round = 1; round <= 5; round++) {
+                long start = System.nanoTime();
+                int sum = runTokenizer(translator, commands);
+                long tokenizerTime = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                sum -= runEncoder(translator, commands);
+                long encoderTime = System.nanoTime() - start;
+
+                if (sum != 0)
+                    System.err.println("Results differ");
+
+                start = System.nanoTime();
+                new HackAssembler(file.getPath(), LINES, HackAssemblerTranslator.NOP, false);
+                long twoPassTime = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                new SinglePassAssembler(file.getPath());
+                long singlePassTime = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                new ParallelAssembler(file.getPath(), Runtime.getRuntime().availableProcessors());
+                long parallelTime = System.nanoTime() - start;
+
+                System.out.println("Round " + round + ": tokenizer " +
+                                   format((double)tokenizerTime / commands.length) +
+                                   " ns/line, encoder " +
+                                   format((double)encoderTime / commands.length) +
+                                   " ns/line, HackAssembler " + twoPassTime / 1000000 +
+                                   " ms, SinglePassAssembler " + singlePassTime / 1000000 +
+                                   " ms, ParallelAssembler " + parallelTime / 1000000 + " ms");
+            }
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+            System.exit(-1);
+        }
+    }
+
+    // Writes a file of a million lines with labels, symbols, numbers and comments
+    // into the given file, and returns its commands that have no symbols.
+    private static String[] generate(File file) throws IOException {
+        Random random = new Random(0);
+        String[] commands = new String[LINES];
+        int count = 0;
+
+        PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+        for (int i = 0; i < LINES; i++) {
+            String line;
+            switch (random.nextInt(8)) {
+                case 0:
+                    line = "(LABEL" + i + ")";
+                    break;
+                case 1:
+                    line = "@LABEL" + (i + random.nextInt(2000) - 1000);
+                    break;
+                case 2:
+                    line = "@" + random.nextInt(32768);
+                    commands[count++] = line;
+                    break;
+                case 3:
+                    line = "@var" + random.nextInt(100);
+                    break;
+                default:
+                    line = COMMANDS[random.nextInt(COMMANDS.length)];
+                    if (random.nextInt(4) == 0)
+                        line = "    " + line + " // comment";
+                    commands[count++] = line;
+                    break;
+            }
+            writer.println(line);
+        }
+        writer.close();
+
+        String[] result = new String[count];
+        System.arraycopy(commands, 0, result, 0, count);
+        return result;
+    }
+
+    // Translates the given commands with an AssemblyLineTokenizer per line.
+    private static int runTokenizer(HackAssemblerTranslator translator, String[] commands)
+     throws Exception {
+        int sum = 0;
+
+        for (int i = 0; i < commands.length; i++) {
+            AssemblyLineTokenizer input = new AssemblyLineTokenizer(commands[i]);
+            short code;
+
+            if (input.isToken("@")) {
+                input.advance(true);
+                code = Short.parseShort(input.token());
+            }
+            else {
+                String firstToken = input.token();
+                short dest = 0, jmp = 0;
+                input.advance(false);
+                if (input.isToken("=")) {
+                    dest = translator.getDestByText(firstToken);
+                    input.advance(true);
+                    firstToken = input.token();
+                    input.advance(false);
+                }
+                short exp = translator.getExpByText(firstToken);
+                if (input.isToken(";")) {
+                    input.advance(true);
+                    jmp = translator.getJmpByText(input.token());
+                }
+                code = (short)(dest + exp + jmp);
+            }
+
+            sum += code;
+        }
+
+        return sum;
+    }
+
+    // Translates the given commands through the encoder.
+    private static int runEncoder(HackAssemblerTranslator translator, String[] commands) {
+        int sum = 0;
+
+        for (int i = 0; i < commands.length; i++)
+            sum += (short)translator.encode(commands[i], 0, commands[i].length());
+
+        return sum;
+    }
+
+    // Formats the given number with two decimal digits.
+    private static String format(double value) {
+        return String.valueOf(Math.round(value * 100) / 100.0);
+    }
+}
@@ -0,0 +1,93 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+import java.io.*;
+import Hack.Assembler.*;
+
+/**
+ * A test of the error messages of the assemblers. Assembles a file with each of a
+ * list of illegal lines with the HackAssembler, the SinglePassAssembler and the
+ * ParallelAssembler, and checks that all of them report the same error, with the
+ * line number of the illegal line. Exits with a non zero status if any differ.
+ */
+public class AssemblerErrorTest {
+
+    // The number of legal lines before the illegal line
+    private static final int LINE_NUMBER = 777;
+
+    // The illegal lines
+    private static final String[] LINES = {
+        "(foo", "@", "()", "(", "(a]", "(a)x", "@1 (", "D=Q", "D;JXX", "M[]=D", "D=M[3",
+        "M=M[a]b[c]"};
+
+    /**
+     * The command line assembler error test program.
+     */
+    public static void main(String[] args) {
+        int failed = 0;
+
+        try {
+            File file = File.createTempFile("errors", ".asm");
+            file.deleteOnExit();
+
+            for (int i = 0; i < LINES.length; i++) {
+                PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+                for (int j = 0; j < LINE_NUMBER; j++)
+                    writer.println("D=M");
+                writer.println(LINES[i]);
+                writer.close();
+
+                String expected = "In line " + LINE_NUMBER + ", ";
+                String twoPass = null, singlePass = null, parallel = null;
+                try {
+                    new HackAssembler(file.getPath(), LINE_NUMBER + 2, HackAssemblerTranslator.NOP,
+                                      false);
+                } catch (Exception e) {
+                    twoPass = e.getMessage();
+                }
+                try {
+                    new SinglePassAssembler(file.getPath());
+                } catch (AssemblerException ae) {
+                    singlePass = ae.getMessage();
+                }
+                try {
+                    new ParallelAssembler(file.getPath(), 2);
+                } catch (AssemblerException ae) {
+                    parallel = ae.getMessage();
+                }
+
+                if (twoPass == null || !twoPass.startsWith(expected) ||
+                    twoPass.indexOf("In line", expected.length()) >= 0 ||
+                    !twoPass.equals(singlePass) || !twoPass.equals(parallel)) {
+                    System.out.println("FAIL " + LINES[i] + ": HackAssembler: " + twoPass +
+                                       ", SinglePassAssembler: " + singlePass +
+                                       ", ParallelAssembler: " + parallel);
+                    failed++;
+                }
+                else
+                    System.out.println("PASS " + LINES[i] + ": " + twoPass);
+            }
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+            System.exit(-1);
+        }
+
+        System.out.println(LINES.length + " lines: " + (LINES.length - failed) + " passed, " +
+                           failed + " failed");
+        System.exit(failed == 0 ? 0 : -1);
+    }
+}
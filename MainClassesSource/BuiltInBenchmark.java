@@ -0,0 +1,160 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+import java.io.*;
+import java.lang.reflect.*;
+import Hack.CPUEmulator.RAM;
+import Hack.ComputerParts.*;
+import Hack.Controller.ProgramException;
+import Hack.Utilities.*;
+import Hack.VMEmulator.*;
+
+/**
+ * A benchmark of the built-in functions of the VM emulator. Runs a generated
+ * program that calls built-in functions in a loop (Math, String, Screen and
+ * Memory functions, with a Screen.clearScreen every 256 iterations) once with
+ * all the built-in functions called by VM code run on the built-in code runner
+ * thread, as the emulator used to, and once with the built-in functions run
+ * directly on the emulator thread. Prints the cost per built-in call of each.
+ */
+public class BuiltInBenchmark {
+
+    // The number of VM instructions that are executed in each run
+    private static final int STEPS = 1000000;
+
+    // The generated program
+    private static final String[] PROGRAM = {
+        "function Main.main 2",
+        "label LOOP",
+        "push local 0", "push constant 1", "add", "pop local 0",
+        "push local 0", "push constant 37", "call Math.multiply 2", "pop local 1",
+        "push local 1", "push constant 7", "call Math.divide 2", "pop temp 0",
+        "push constant 3", "call String.new 1", "push constant 65",
+        "call String.appendChar 2", "call String.dispose 1", "pop temp 0",
+        "push local 0", "push constant 511", "and",
+        "push local 0", "push constant 255", "and",
+        "call Screen.drawPixel 2", "pop temp 0",
+        "push constant 24000", "push local 1", "call Memory.poke 2", "pop temp 0",
+        "push constant 24000", "call Memory.peek 1", "pop temp 0",
+        "push local 0", "push constant 255", "and", "if-goto LOOP",
+        "call Screen.clearScreen 0", "pop temp 0",
+        "goto LOOP"};
+
+    /**
+     * The command line built-in functions benchmark program.
+     */
+    public static void main(String[] args) {
+        try {
+            File dir = generate();
+            CPU cpu = createCPU();
+            cpu.getProgram().loadProgram(dir.getPath());
+
+            for (int round = 1; round <= 5; round++) {
+                double threadTime = run(cpu, true);
+                double directTime = run(cpu, false);
+                System.out.println("Round " + round + ": thread " + format(threadTime) +
+                                   " ns/call, direct " + format(directTime) + " ns/call");
+            }
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+            System.exit(-1);
+        }
+        System.exit(0);
+    }
+
+    // Writes the program into a new temporary directory, and returns the directory.
+    private static File generate() throws IOException {
+        File dir = File.createTempFile("benchmark", "");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+
+        File file = new File(dir, "Main.vm");
+        file.deleteOnExit();
+        PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+        for (int i = 0; i < PROGRAM.length; i++)
+            writer.println(PROGRAM[i]);
+        writer.close();
+
+        return dir;
+    }
+
+    // Creates a CPU as the VM emulator does. The program has a GUI that confirms
+    // the use of built-in functions, since they are only available with a GUI.
+    private static CPU createCPU() {
+        VMProgramGUI gui = (VMProgramGUI)Proxy.newProxyInstance(
+            VMProgramGUI.class.getClassLoader(), new Class[]{VMProgramGUI.class},
+            new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    return method.getName().equals("confirmBuiltInAccess") ? Boolean.TRUE : null;
+                }
+            });
+        File builtInDir = new File("builtInVMCode");
+        VMProgram program = new VMProgram(gui, builtInDir);
+
+        MemorySegment[][] segments = new MemorySegment[Definitions.RAM_SIZE][];
+        RAM ram = new RAM(null, segments, null);
+        ram.reset();
+
+        AbsolutePointedMemorySegment stackSegment =
+            new AbsolutePointedMemorySegment(ram, null);
+        TrimmedAbsoluteMemorySegment workingStackSegment =
+            new TrimmedAbsoluteMemorySegment(ram, null);
+        MemorySegment staticSegment = new MemorySegment(ram, null);
+        MemorySegment localSegment = new MemorySegment(ram, null);
+        MemorySegment argSegment = new MemorySegment(ram, null);
+        MemorySegment thisSegment = new MemorySegment(ram, null);
+        MemorySegment thatSegment = new MemorySegment(ram, null);
+        MemorySegment tempSegment = new MemorySegment(ram, null);
+        tempSegment.setStartAddress(Definitions.TEMP_START_ADDRESS);
+        tempSegment.setEnabledRange(5, 12, true);
+
+        segments[Definitions.SP_ADDRESS] = new MemorySegment[]{stackSegment, workingStackSegment};
+        segments[Definitions.LOCAL_POINTER_ADDRESS] = new MemorySegment[]{localSegment};
+        segments[Definitions.ARG_POINTER_ADDRESS] = new MemorySegment[]{argSegment};
+        segments[Definitions.THIS_POINTER_ADDRESS] = new MemorySegment[]{thisSegment};
+        segments[Definitions.THAT_POINTER_ADDRESS] = new MemorySegment[]{thatSegment};
+
+        CPU cpu = new CPU(program, ram, new CallStack(null), new Calculator(null), new Bus(null),
+                          stackSegment, workingStackSegment, staticSegment, localSegment,
+                          argSegment, thisSegment, thatSegment, tempSegment,
+                          builtInDir);
+        cpu.setDisplayChanges(false);
+        return cpu;
+    }
+
+    // Runs the program from its beginning with the built-in functions called by
+    // VM code run on the thread or not, and returns the time per built-in call.
+    private static double run(CPU cpu, boolean thread) throws ProgramException {
+        System.setProperty(BuiltInFunctionsRunner.THREAD_PROPERTY, String.valueOf(thread));
+        cpu.getRAM().reset();
+        cpu.getProgram().restartProgram();
+        cpu.boot();
+
+        long calls = Metrics.vmCalls;
+        long start = System.nanoTime();
+        for (int i = 0; i < STEPS; i++)
+            cpu.executeInstruction();
+        long time = System.nanoTime() - start;
+
+        return (double)time / (Metrics.vmCalls - calls);
+    }
+
+    // Returns the given number with one digit after the point.
+    private static String format(double value) {
+        return String.valueOf(Math.round(value * 10) / 10.0);
+    }
+}
@@ -0,0 +1,182 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+import java.io.*;
+import java.util.*;
+import Hack.Controller.*;
+import Hack.CPUEmulator.*;
+
+/**
+ * A headless batch runner for the CPU Emulator. Finds all the test scripts (.tst)
+ * in a directory tree that have a program (.hack, .hackb or .asm) with the same name next
+ * to them, and runs them concurrently on a fixed number of workers. Each script
+ * runs on a new CPU Emulator, so no state (such as screenshots, the step back
+ * history or the profiler) carries over from the previous script. A loop of
+ * simulator commands ends once the program reaches a halt loop, so the time that
+ * a script reports after such a loop may be lower than in the CPU Emulator.
+ * Prints the result, the number of cycles and the wall time of each script, and
+ * exits with a non zero status if any script failed.
+ */
+public class CPUEmulatorBatch {
+
+    // The scripts that are left to run
+    private Vector scripts;
+
+    // The root directory of the scripts
+    private File root;
+
+    // The number of scripts that passed and failed
+    private int passed, failed;
+
+    /**
+     * Constructs a new batch runner for the scripts in the given directory tree.
+     */
+    public CPUEmulatorBatch(File root) {
+        this.root = root;
+        scripts = new Vector();
+        findScripts(root);
+        Collections.sort(scripts);
+    }
+
+    // Adds the test scripts in the given directory tree that have a matching program.
+    private void findScripts(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+
+        for (int i = 0; i < files.length; i++) {
+            if (files[i].isDirectory())
+                findScripts(files[i]);
+            else if (files[i].getName().endsWith(".tst")) {
+                String path = files[i].getPath();
+                String base = path.substring(0, path.length() - 4);
+                if (new File(base + ".hack").exists() || new File(base + ".hackb").exists()
+                        || new File(base + ".asm").exists())
+                    scripts.addElement(files[i]);
+            }
+        }
+    }
+
+    /**
+     * Runs all the scripts on the given number of workers and waits for them to end.
+     * Returns true if all the scripts passed.
+     */
+    public boolean run(int numberOfWorkers) throws InterruptedException {
+        int count = scripts.size();
+        Thread[] workers = new Thread[numberOfWorkers];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(new Worker());
+            workers[i].start();
+        }
+
+        for (int i = 0; i < workers.length; i++)
+            workers[i].join();
+
+        System.out.println(count + " scripts: " + passed + " passed, " + failed + " failed");
+        return failed == 0;
+    }
+
+    // Returns the next script to run, or null if there are no more scripts.
+    private synchronized File nextScript() {
+        File script = null;
+        if (!scripts.isEmpty()) {
+            script = (File)scripts.firstElement();
+            scripts.removeElementAt(0);
+        }
+        return script;
+    }
+
+    // Prints the result of the given script.
+    private synchronized void report(File script, boolean success, String cycles, long ms,
+                                     String message) {
+        if (success)
+            passed++;
+        else
+            failed++;
+
+        String path = script.getPath().substring(root.getPath().length() + 1);
+        System.out.println((success ? "PASS " : "FAIL ") + path + " (" + cycles + " cycles, " +
+                           ms + " ms)" + (success || message == null ? "" : ": " + message));
+    }
+
+    // A worker that runs scripts, each on a new CPU Emulator, until no scripts are left.
+    class Worker implements Runnable {
+
+        public void run() {
+            File script;
+
+            while ((script = nextScript()) != null) {
+                long start = System.currentTimeMillis();
+                boolean success = false;
+                String cycles = "?";
+                String message = null;
+
+                CPUEmulator emulator = new CPUEmulator();
+                HackController controller = new HackController(emulator, script, true);
+                controller.setEndHaltedLoops(true);
+                try {
+                    success = controller.runScript();
+                    message = controller.getErrorMessage();
+                    cycles = emulator.getValue("time");
+                } catch (VariableException ve) {
+                } catch (RuntimeException re) {
+                    success = false;
+                    message = re.toString();
+                }
+                emulator.removeListener(controller);
+
+                report(script, success, cycles, System.currentTimeMillis() - start, message);
+            }
+        }
+    }
+
+    /**
+     * The command line CPU Emulator batch runner.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: java CPUEmulatorBatch <directory> [number of workers]");
+            System.exit(-1);
+        }
+
+        File root = new File(args[0]).getAbsoluteFile();
+        if (!root.isDirectory()) {
+            System.err.println(args[0] + " is not a directory");
+            System.exit(-1);
+        }
+
+        int workers = Runtime.getRuntime().availableProcessors();
+        if (args.length == 2) {
+            try {
+                workers = Integer.parseInt(args[1]);
+            } catch (NumberFormatException nfe) {
+                workers = 0;
+            }
+            if (workers < 1) {
+                System.err.println("Illegal number of workers: " + args[1]);
+                System.exit(-1);
+            }
+        }
+
+        CPUEmulatorBatch batch = new CPUEmulatorBatch(root);
+        long start = System.currentTimeMillis();
+        boolean success = batch.run(workers);
+        System.out.println("Total wall time: " + (System.currentTimeMillis() - start) + " ms");
+
+        System.exit(success ? 0 : -1);
+    }
+}
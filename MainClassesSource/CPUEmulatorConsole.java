@@ -17,6 +17,8 @@
 
 import Hack.CPUEmulator.*;
 import Hack.Controller.HackController;
+import Hack.Controller.RateGovernor;
+import Hack.Controller.ProgramException;
 import Hack.Utilities.Definitions;
 import SimulatorsGUI.ScreenComponent;
 
@@ -27,108 +29,158 @@ import java.awt.event.KeyListener;
 import java.io.File;
 
 /**
- * The CPU Emulator.
+ * The CPU Emulator, as a console with no debugging.
  */
-public class CPUEmulatorConsole extends JFrame implements Runnable {
-
-    private CPU cpu;
-    private RAM ram;
-    private ScreenComponent screen;
-
-    public CPUEmulatorConsole(String title, CPU cpu, RAM ram, ScreenComponent screen) {
-        super(title);
-        this.cpu = cpu;
-        this.ram = ram;
-        this.screen = screen;
-        KeyboardFocusManager manager = KeyboardFocusManager.getCurrentKeyboardFocusManager();
-        manager.addKeyEventDispatcher(new MyDispatcher());
-        setLayout(new BorderLayout());
-        add(this.screen, BorderLayout.CENTER);
-        pack();
-        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        setVisible(true);
+public class CPUEmulatorConsole {
+
+    /**
+     * The command line CPU Emulator program, as a console (no debugging).
+     * Runs the program in a window at the given rate of instructions per second
+     * (0 for unlimited). When given a keystroke script, runs the program headless (with no AWT) for
+     * the given number of cycles, replaying the keys at their cycles, and optionally
+     * writes the screen into a file at the end.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 4)
+            System.err.println("Usage: java CPUEmulatorConsole [Hack binary] ([instructions per second]) | " +
+                               "([keystroke script] [cycles] [screen file])");
+        else {
+            CPUEmulator cpuEmulator = new CPUEmulator();
+            CPU cpu = cpuEmulator.getCPU();
+            cpu.disableAssemblerTranslator();
+            cpuEmulator.setWorkingDir(new File("."));
+
+            if (args.length == 1)
+                runWindow(args[0], HackController.FASTFORWARD_SPEED_FUNCTION[3], cpuEmulator);
+            else if (args.length == 2)
+                runWindow(args[0], Long.parseLong(args[1]), cpuEmulator);
+            else
+                runReplay(args, cpuEmulator);
+        }
     }
 
-    public synchronized void run() {
+    // Runs the program in a window, with the keys of the real keyboard.
+    private static void runWindow(String program, long rate, CPUEmulator cpuEmulator)
+     throws Exception {
         try {
-            System.runFinalization();
-            System.gc();
-            wait(300);
-        } catch (InterruptedException ie) {
-        }
-        int count = 0;
-        int rounds = HackController.FASTFORWARD_SPEED_FUNCTION[3];
-
-        while(true) {
-            try {
-                cpu.executeInstruction();
-                notifyAll();
-                // waits for 1 ms each constant amount of commands
-                if (count == rounds) {
-                    count = 0;
-                    try {
-                        wait(1);
-                    } catch (InterruptedException ie) {}
-                }
-                count++;
-            } catch(Exception e) {
-                e.printStackTrace();
-            }
+            UIManager.setLookAndFeel(UIManager.getCrossPlatformLookAndFeelClassName());
+        } catch (Exception e) {
         }
+
+        CPU cpu = cpuEmulator.getCPU();
+        RAM ram = cpu.getRAM();
+
+        ScreenComponent screen = new ScreenComponent();
+        ram.setScreenGUI(screen);
+
+        System.out.println("Loading program " + program);
+        cpuEmulator.doCommand(new String[]{"load", program});
+
+        Thread t = new Thread(new ConsoleWindow(program, rate, cpu, ram, screen));
+        t.start();
     }
 
-    private class MyDispatcher implements KeyEventDispatcher {
-        public boolean dispatchKeyEvent(KeyEvent e) {
-            if (e.getID() == KeyEvent.KEY_PRESSED) {
-                //System.out.println("keyCode: " + e.getKeyCode());
-                short keyCode = 0;
-                // translate Java keycode to Hack keycode
-                switch(e.getKeyCode()) {
-                    case 37: keyCode = 130; break; // left
-                    case 38: keyCode = 131; break; // up
-                    case 39: keyCode = 132; break; // right
-                    case 40: keyCode = 133; break; // down
-                    case 8: keyCode = 129; break; // backspace
-                    case 10: keyCode = 128; break; // newline
-                    // TODO: handle the rest
-                    default: keyCode = (short)e.getKeyCode(); break;
-                }
-                ram.setValueAt(Definitions.KEYBOARD_ADDRESS, (short) keyCode, true);
-            } else if (e.getID() == KeyEvent.KEY_RELEASED) {
-                ram.setValueAt(Definitions.KEYBOARD_ADDRESS, (short) 0, true);
-            }
-            return false;
+    // Runs the program headless, with the keys of a keystroke script.
+    private static void runReplay(String[] args, CPUEmulator cpuEmulator) throws Exception {
+        CPU cpu = cpuEmulator.getCPU();
+        KeyboardReplay replay = new KeyboardReplay(args[1]);
+        long cycles = Long.parseLong(args[2]);
+
+        cpuEmulator.doCommand(new String[]{"load", args[0]});
+
+        long startTime = System.currentTimeMillis();
+        try {
+            replay.run(cpu, cycles);
+        } catch (ProgramException pe) {
+            System.err.println("After " + cpu.getTime() + " cycles: " + pe.getMessage());
+            System.exit(-1);
+        }
+        long elapsed = System.currentTimeMillis() - startTime;
+        System.out.println("Ran " + cpu.getTime() + " cycles in " + elapsed + " ms" +
+                           (cpu.getEngine().isHalted() ? " (halted)" : ""));
+
+        if (args.length == 4) {
+            ScreenCapture screen = new ScreenCapture(null);
+            screen.copyFrom(cpu.getRAM().getContents(), Definitions.SCREEN_START_ADDRESS);
+            screen.write(args[3]);
         }
     }
 
     /**
-     * The command line CPU Emulator program, as a console (no debugging).
+     * The console window, which runs the program and sends it the pressed keys.
      */
-    public static void main(String[] args) throws Exception {
-        if (args.length != 1)
-            System.err.println("Usage: java CPUEmulatorConsole [Hack binary]");
-        else {
-            try {
-                UIManager.setLookAndFeel(UIManager.getCrossPlatformLookAndFeelClassName());
-            } catch (Exception e) {
-            }
+    private static class ConsoleWindow extends JFrame implements Runnable {
 
-            CPUEmulator cpuEmulator = new CPUEmulator();
-            CPU cpu = cpuEmulator.getCPU();
-            cpu.disableAssemblerTranslator();
-            RAM ram = cpu.getRAM();
+        private String program;
+        private long rate;
+        private CPU cpu;
+        private RAM ram;
+        private ScreenComponent screen;
 
-            cpuEmulator.setWorkingDir(new File("."));
+        public ConsoleWindow(String title, long rate, CPU cpu, RAM ram, ScreenComponent screen) {
+            super(title);
+            this.program = title;
+            this.rate = rate;
+            this.cpu = cpu;
+            this.ram = ram;
+            this.screen = screen;
+            KeyboardFocusManager manager = KeyboardFocusManager.getCurrentKeyboardFocusManager();
+            manager.addKeyEventDispatcher(new MyDispatcher());
+            setLayout(new BorderLayout());
+            add(this.screen, BorderLayout.CENTER);
+            pack();
+            setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+            setVisible(true);
+        }
+
+        public void run() {
+            RateGovernor governor = new RateGovernor(rate);
+            int batchSize = governor.getBatchSize();
+            ExecutionEngine engine = cpu.getEngine();
+            long shownRate = 0;
 
-            ScreenComponent screen = new ScreenComponent();
-            ram.setScreenGUI(screen);
+            while(true) {
+                try {
+                    engine.run(batchSize);
+                } catch(Exception e) {
+                    e.printStackTrace();
+                }
+                governor.pace(batchSize);
 
-            System.out.println("Loading program " + args[0]);
-            cpuEmulator.doCommand(new String[]{"load", args[0]});
+                // nothing can change once the program is in a halt loop
+                if (engine.isHalted())
+                    break;
 
-            Thread t = new Thread(new CPUEmulatorConsole(args[0], cpu, ram, screen));
-            t.start();
+                // shows the achieved rate in the title
+                if (governor.getAchievedRate() != shownRate) {
+                    shownRate = governor.getAchievedRate();
+                    setTitle(program + " (" + (shownRate / 1000) + " KHz)");
+                }
+            }
         }
-    }
 
+        private class MyDispatcher implements KeyEventDispatcher {
+            public boolean dispatchKeyEvent(KeyEvent e) {
+                if (e.getID() == KeyEvent.KEY_PRESSED) {
+                    //System.out.println("keyCode: " + e.getKeyCode());
+                    short keyCode = 0;
+                    // translate Java keycode to Hack keycode
+                    switch(e.getKeyCode()) {
+                        case 37: keyCode = 130; break; // left
+                        case 38: keyCode = 131; break; // up
+                        case 39: keyCode = 132; break; // right
+                        case 40: keyCode = 133; break; // down
+                        case 8: keyCode = 129; break; // backspace
+                        case 10: keyCode = 128; break; // newline
+                        // TODO: handle the rest
+                        default: keyCode = (short)e.getKeyCode(); break;
+                    }
+                    ram.setValueAt(Definitions.KEYBOARD_ADDRESS, (short) keyCode, true);
+                } else if (e.getID() == KeyEvent.KEY_RELEASED) {
+                    ram.setValueAt(Definitions.KEYBOARD_ADDRESS, (short) 0, true);
+                }
+                return false;
+            }
+        }
+    }
 }
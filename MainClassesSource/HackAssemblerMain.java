@@ -0,0 +1,93 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+import java.io.*;
+import Hack.Analysis.*;
+import Hack.Assembler.*;
+import Hack.Utilities.*;
+
+/**
+ * The command line assembler. Translates the given .asm file into a .hack file
+ * with the same name, or with -binary into a binary program (.hackb) file that
+ * also contains the labels of the program. With -parallel, large files are translated
+ * in chunks on all the available processors. With -dot or -json, also writes the
+ * control flow graph of the program into a .dot or .json file with the same name.
+ * If the system property "hack.assembler.cache" is set, files that are not translated
+ * in parallel go through the assembler cache in that directory.
+ */
+public class HackAssemblerMain {
+
+    public static void main(String[] args) {
+        boolean binary = false, parallel = false, dot = false, json = false;
+        boolean legal = (args.length > 0);
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals("-binary"))
+                binary = true;
+            else if (args[i].equals("-parallel"))
+                parallel = true;
+            else if (args[i].equals("-dot"))
+                dot = true;
+            else if (args[i].equals("-json"))
+                json = true;
+            else
+                legal = false;
+        }
+        if (!legal) {
+            System.err.println("Usage: java HackAssemblerMain [-binary] [-parallel] [-dot] [-json] [.asm file]");
+            System.exit(-1);
+        }
+
+        String fileName = args[args.length - 1];
+        String baseName = fileName.substring(0, fileName.lastIndexOf('.'));
+        try {
+            SinglePassAssembler assembler;
+            if (parallel)
+                assembler = new ParallelAssembler(fileName,
+                                                  Runtime.getRuntime().availableProcessors());
+            else
+                assembler = CachingAssembler.assemble(fileName);
+
+            if (binary)
+                assembler.saveBinary(baseName + ".hackb");
+            else
+                assembler.save(baseName + ".hack");
+
+            if (dot || json) {
+                ControlFlowGraph graph = ControlFlowGraph.getGraph(
+                    assembler.getProgram(Definitions.ROM_SIZE, HackAssemblerTranslator.NOP));
+                if (dot)
+                    write(baseName + ".dot", graph.toDot());
+                if (json)
+                    write(baseName + ".json", graph.toJSON());
+            }
+        } catch (AssemblerException ae) {
+            System.err.println(ae.getMessage());
+            System.exit(-1);
+        }
+    }
+
+    // Writes the given text into the given file.
+    private static void write(String fileName, String text) throws AssemblerException {
+        try {
+            Writer writer = new FileWriter(fileName);
+            writer.write(text);
+            writer.close();
+        } catch (IOException ioe) {
+            throw new AssemblerException("could not create file " + fileName);
+        }
+    }
+}
@@ -21,7 +21,7 @@ import java.io.File;
 import javax.swing.filechooser.FileFilter;
 
 /**
- * A file filter of '.hack' or '.asm' files, for the use of the ROMComponent.
+ * A file filter of '.hack', '.hackb' or '.asm' files, for the use of the ROMComponent.
  */
 public class ROMFileFilter extends FileFilter {
 
@@ -35,7 +35,7 @@ public class ROMFileFilter extends FileFilter {
 
         String extension = getExtension(f);
         if (extension != null) {
-            if (extension.equals("hack") || extension.equals("asm") )
+            if (extension.equals("hack") || extension.equals("hackb") || extension.equals("asm") )
                     return true;
             else {
                 return false;
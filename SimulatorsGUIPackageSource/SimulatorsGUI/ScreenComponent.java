@@ -20,18 +20,25 @@ package SimulatorsGUI;
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import javax.swing.*;
 import Hack.CPUEmulator.*;
 import Hack.Utilities.*;
 
 /**
  * A Screen GUI component.
+ * Writes into the screen memory only mark the changed lines as dirty. The dirty
+ * lines are converted into the image, and only the area they cover is repainted,
+ * at the constant intervals of the screen's timer.
  */
 public class ScreenComponent extends JPanel implements ScreenGUI, ActionListener {
 
-    // the clock intervals for animation
-    private static final int ANIMATION_CLOCK_INTERVALS = 50;
-    private static final int STATIC_CLOCK_INTERVALS = 500;
+    // the clock intervals for animation (about 60 frames per second while animating)
+    private static final int ANIMATION_CLOCK_INTERVALS = 16;
+    private static final int STATIC_CLOCK_INTERVALS = 100;
+
+    // The number of words in a line of the screen
+    private static final int WORDS_PER_LINE = Definitions.SCREEN_WIDTH / Definitions.BITS_PER_WORD;
     private static final int screenOnColor = Color.black.getRGB();
     private static final int screenOffColor = Color.white.getRGB();
 
@@ -41,7 +48,13 @@ public class ScreenComponent extends JPanel implements ScreenGUI, ActionListener
     // Underlying image that is actually drawn onto
     private BufferedImage img;
 
-    // redraw flag
+    // The pixels of the image
+    private int[] pixels;
+
+    // A bitset of the lines that changed since the image was last updated
+    private long[] dirtyLines;
+
+    // redraw flag (true if there are dirty lines)
     private boolean redraw = true;
 
     // screen location at a given index
@@ -83,11 +96,9 @@ public class ScreenComponent extends JPanel implements ScreenGUI, ActionListener
         }
 
         img = new BufferedImage(Definitions.SCREEN_WIDTH, Definitions.SCREEN_HEIGHT, BufferedImage.TYPE_INT_RGB);
-        for(int i = 0; i < Definitions.SCREEN_WIDTH; i++) {
-            for(int j = 0; j < Definitions.SCREEN_HEIGHT; j++) {
-                img.setRGB(i, j, screenOffColor);
-            }
-        }
+        pixels = ((DataBufferInt)img.getRaster().getDataBuffer()).getData();
+        dirtyLines = new long[(Definitions.SCREEN_HEIGHT + 63) / 64];
+        markAllDirty();
 
         timer = new Timer(STATIC_CLOCK_INTERVALS, this);
         timer.start();
@@ -99,17 +110,7 @@ public class ScreenComponent extends JPanel implements ScreenGUI, ActionListener
      */
     public void setValueAt(int index, short value) {
         data[index] = value;
-        int v;
-        int x = index * 16 % Definitions.SCREEN_WIDTH;
-        int y = index / 32;
-        for(int i = 0; i < 16; i++) {
-            v = (value >> i) & 1; // get last bit, after shifting
-            int rgb = (v == 1 ? screenOnColor : screenOffColor);
-            img.setRGB(x, y, rgb);
-            x++;
-        }
-        redraw = true;
-        refresh(); // force the repaint; results in smoother drawing
+        markDirty(index / WORDS_PER_LINE);
     }
 
     /**
@@ -118,7 +119,7 @@ public class ScreenComponent extends JPanel implements ScreenGUI, ActionListener
      */
     public void setContents(short[] values) {
         data = values;
-        redraw = true;
+        markAllDirty();
     }
 
     /**
@@ -128,17 +129,59 @@ public class ScreenComponent extends JPanel implements ScreenGUI, ActionListener
         for (int i = 0; i < data.length; i++)
             data[i] = 0;
 
-        redraw = true;
+        markAllDirty();
     }
 
     /**
      * Refreshes this component.
      */
     public void refresh() {
-        if (redraw) {
-            repaint();
-            redraw = false;
+        updateImage();
+    }
+
+    // Marks the given line as dirty.
+    private synchronized void markDirty(int line) {
+        dirtyLines[line >> 6] |= 1L << (line & 63);
+        redraw = true;
+    }
+
+    // Marks all the lines as dirty.
+    private synchronized void markAllDirty() {
+        for (int i = 0; i < dirtyLines.length; i++)
+            dirtyLines[i] = -1;
+        redraw = true;
+    }
+
+    // Converts the dirty lines from the screen memory into the image's pixels,
+    // and repaints the area that they cover.
+    private synchronized void updateImage() {
+        if (!redraw)
+            return;
+
+        int firstLine = -1, lastLine = -1;
+        for (int line = 0; line < Definitions.SCREEN_HEIGHT; line++) {
+            if ((dirtyLines[line >> 6] & (1L << (line & 63))) == 0)
+                continue;
+
+            int index = line * WORDS_PER_LINE;
+            int pixel = line * Definitions.SCREEN_WIDTH;
+            for (int word = 0; word < WORDS_PER_LINE; word++) {
+                int value = data[index++];
+                for (int bit = 0; bit < Definitions.BITS_PER_WORD; bit++)
+                    pixels[pixel++] = ((value >> bit) & 1) != 0 ? screenOnColor : screenOffColor;
+            }
+
+            if (firstLine == -1)
+                firstLine = line;
+            lastLine = line;
         }
+
+        for (int i = 0; i < dirtyLines.length; i++)
+            dirtyLines[i] = 0;
+        redraw = false;
+        Metrics.screenRepaints++;
+
+        repaint(0, firstLine, Definitions.SCREEN_WIDTH, lastLine - firstLine + 1);
     }
 
     /**
@@ -159,10 +202,7 @@ public class ScreenComponent extends JPanel implements ScreenGUI, ActionListener
      * Called at constant intervals
      */
     public void actionPerformed(ActionEvent e) {
-        if (redraw) {
-            repaint();
-            redraw = false;
-        }
+        updateImage();
     }
 
     /**
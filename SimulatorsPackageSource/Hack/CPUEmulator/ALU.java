@@ -41,23 +41,9 @@ public class ALU extends ValueComputerPart {
     // The gui of the ALU
     private ALUGUI gui;
 
-    // if true, zeros input0 before operation
-    private boolean zero0;
-
-    // if true, zeros input1 before operation
-    private boolean zero1;
-
-    // if true, negates input0 before operation
-    private boolean negate0;
-
-    // if true, negates input1 before operation
-    private boolean negate1;
-
-    // if true, ADDs the inputs. Otherwise, ANDs the inputs (logical AND)
-    private boolean ADDorAND;
-
-    // if true, negates the output after the operation.
-    private boolean negateOutput;
+    // The comp field of the command (zero0, negate0, zero1, negate1, ADDorAND
+    // & negateOutput bits - see ALUTable)
+    private int comp;
 
 
     /**
@@ -81,16 +67,21 @@ public class ALU extends ValueComputerPart {
      * ADDorAND - if true, ADDs the inputs. Otherwise, ANDs the inputs (logical AND)
      * negateOutput - if true, negates the output after the operation.
      */
-    public synchronized void setCommand(String description,  boolean zero0, boolean negate0,
-                                        boolean zero1, boolean negate1, boolean ADDorAND,
-                                        boolean negateOutput) {
+    public void setCommand(String description,  boolean zero0, boolean negate0,
+                           boolean zero1, boolean negate1, boolean ADDorAND,
+                           boolean negateOutput) {
+        setCommand(description, (zero0 ? 0x20 : 0) | (negate0 ? 0x10 : 0) | (zero1 ? 0x08 : 0) |
+                                (negate1 ? 0x04 : 0) | (ADDorAND ? 0x02 : 0) |
+                                (negateOutput ? 0x01 : 0));
+    }
+
+    /**
+     * Sets the ALU's command with the given description and comp field of an
+     * instruction (the a bit followed by the six control bits, as in ALUTable).
+     */
+    public synchronized void setCommand(String description, int comp) {
         commandDescription = description;
-        this.zero0 = zero0;
-        this.negate0 = negate0;
-        this.zero1 = zero1;
-        this.negate1 = negate1;
-        this.ADDorAND = ADDorAND;
-        this.negateOutput = negateOutput;
+        this.comp = comp;
 
         if (displayChanges)
             gui.setCommand(description);
@@ -118,8 +109,7 @@ public class ALU extends ValueComputerPart {
             gui.hideBodyFlash();
         }
 
-        short result = Definitions.computeALU(input0, input1, zero0, negate0, zero1,
-                                              negate1, ADDorAND, negateOutput);
+        short result = ALUTable.compute(comp, input0, input1);
 
         setValueAt(2, result, false);
     }
@@ -17,6 +17,9 @@
 
 package Hack.CPUEmulator;
 
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 import Hack.Controller.*;
 import Hack.ComputerParts.*;
 import Hack.Utilities.*;
@@ -54,6 +57,32 @@ public class CPU
     // An assembler transltor
     protected HackAssemblerTranslator assemblerTranslator;
 
+    // The assembler text of each 7-bit comp field (null if has no text)
+    private String[] expTexts;
+
+    // The headless execution engine
+    protected ExecutionEngine engine;
+
+    /**
+     * The default number of instructions recorded in the execution history,
+     * once recording is enabled. A new cpu doesn't record.
+     */
+    public static final int DEFAULT_HISTORY_SIZE = 65536;
+
+    // The history of the last executed instructions
+    protected ExecutionHistory history;
+
+    // The execution profiler (null if not profiling)
+    protected Profiler profiler;
+
+    // Identifies snapshot files ("HSNP") and their format version
+    private static final int SNAPSHOT_MAGIC = 0x48534e50;
+    private static final int SNAPSHOT_VERSION = 1;
+
+    // The size of a snapshot file: magic, version, A, D, PC, time, RAM & ROM
+    private static final int SNAPSHOT_SIZE = 4 + 4 + 2 + 2 + 2 + 8 +
+                                             (Definitions.RAM_SIZE + Definitions.ROM_SIZE) * 2;
+
     /**
      * Constructs a new cpu with the given ROM, RAM, A, D, PC & ALU.
      */
@@ -70,9 +99,22 @@ public class CPU
         A.setUpdatePointer(false);
 
         assemblerTranslator = HackAssemblerTranslator.getInstance();
+        engine = new ExecutionEngine(this);
+        history = new ExecutionHistory(0);
+
+        expTexts = new String[128];
+        for (int comp = 0; comp < expTexts.length; comp++) {
+            try {
+                expTexts[comp] = assemblerTranslator.getExpByCode((short)(0xe000 | (comp << 6)));
+            } catch (AssemblerException ae) {
+            }
+        }
     }
 
-    public void disableAssemblerTranslator() { assemblerTranslator = null; }
+    public void disableAssemblerTranslator() {
+        assemblerTranslator = null;
+        expTexts = new String[128];
+    }
 
     /**
      * Returns the bus.
@@ -123,6 +165,69 @@ public class CPU
         return alu;
     }
 
+    /**
+     * Returns the headless execution engine of this cpu.
+     */
+    public ExecutionEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Returns the history of the last executed instructions.
+     */
+    public ExecutionHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * Returns the execution profiler, or null if not profiling.
+     */
+    public Profiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * Sets the execution profiler. A null profiler stops profiling.
+     */
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    /**
+     * Sets the maximal number of instructions recorded in the execution history.
+     * A size of 0 disables recording.
+     */
+    public void setHistorySize(int size) {
+        history = new ExecutionHistory(size);
+    }
+
+    /**
+     * Undoes the last given number of executed instructions, restoring A, D, PC,
+     * the time and the RAM from the execution history.
+     * Throws ProgramException if the history holds less instructions.
+     */
+    public void stepBack(int count) throws ProgramException {
+        if (count > history.getSize())
+            throw new ProgramException("Can't step back " + count + " instructions: only " +
+                                       history.getSize() + " are recorded");
+
+        engine.sync();
+
+        for (int i = 0; i < count; i++) {
+            history.removeLast();
+            short address = history.getLastAddress();
+            if (address != ExecutionHistory.NO_ADDRESS)
+                M.setValueAt(address, history.getLastValue(), true);
+        }
+
+        if (count > 0) {
+            A.setValueAt(0, history.getLastA(), true);
+            D.setValueAt(0, history.getLastD(), true);
+            PC.setValueAt(0, history.getLastPC(), true);
+            time = history.getLastTime();
+        }
+    }
+
     /**
      * Returns the time that passed since the program started running.
      */
@@ -130,10 +235,95 @@ public class CPU
         return time;
     }
 
+    /**
+     * Saves the state of A, D, PC, the time, the RAM and the ROM into the given
+     * binary snapshot file.
+     * Throws ProgramException if the file can't be written.
+     */
+    public void saveSnapshot(String fileName) throws ProgramException {
+        engine.sync();
+
+        try {
+            RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+            try {
+                file.setLength(SNAPSHOT_SIZE);
+                MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                                                                0, SNAPSHOT_SIZE);
+                buffer.putInt(SNAPSHOT_MAGIC);
+                buffer.putInt(SNAPSHOT_VERSION);
+                buffer.putShort(A.get());
+                buffer.putShort(D.get());
+                buffer.putShort(PC.get());
+                buffer.putLong(time);
+                ShortBuffer contents = buffer.asShortBuffer();
+                contents.put(M.getContents(), 0, Definitions.RAM_SIZE);
+                contents.put(rom.getContents(), 0, Definitions.ROM_SIZE);
+                buffer.force();
+            } finally {
+                file.close();
+            }
+        } catch (IOException ioe) {
+            throw new ProgramException("Can't write snapshot file " + fileName + ": " +
+                                       ioe.getMessage());
+        }
+    }
+
+    /**
+     * Restores the state of A, D, PC, the time, the RAM and the ROM from the given
+     * binary snapshot file.
+     * Throws ProgramException if the file can't be read or is not a snapshot file.
+     */
+    public void loadSnapshot(String fileName) throws ProgramException {
+        short[] ram = new short[Definitions.RAM_SIZE];
+        short[] program = new short[Definitions.ROM_SIZE];
+        short a, d, pc;
+        long newTime;
+
+        try {
+            RandomAccessFile file = new RandomAccessFile(fileName, "r");
+            try {
+                if (file.length() != SNAPSHOT_SIZE)
+                    throw new ProgramException(fileName + " is not a snapshot file");
+
+                MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                                                                0, SNAPSHOT_SIZE);
+                if (buffer.getInt() != SNAPSHOT_MAGIC)
+                    throw new ProgramException(fileName + " is not a snapshot file");
+                if (buffer.getInt() != SNAPSHOT_VERSION)
+                    throw new ProgramException("Unsupported snapshot version in " + fileName);
+
+                a = buffer.getShort();
+                d = buffer.getShort();
+                pc = buffer.getShort();
+                newTime = buffer.getLong();
+                ShortBuffer contents = buffer.asShortBuffer();
+                contents.get(ram);
+                contents.get(program);
+            } finally {
+                file.close();
+            }
+        } catch (IOException ioe) {
+            throw new ProgramException("Can't read snapshot file " + fileName + ": " +
+                                       ioe.getMessage());
+        }
+
+        engine.detach();
+        history.clear();
+        rom.setContents(program, 0);
+        M.setContents(ram, 0);
+        M.refreshScreen();
+        A.setValueAt(0, a, false);
+        D.setValueAt(0, d, false);
+        PC.setValueAt(0, pc, false);
+        time = newTime;
+    }
+
     /**
      * Restarts the program from the beginning.
      */
     public void initProgram() {
+        engine.detach();
+        history.clear();
         A.reset();
         A.setUpdatePointer(true);
         A.setUpdatePointer(false);
@@ -159,6 +349,10 @@ public class CPU
         short instruction = rom.getValueAt(PC.get());
         boolean pcChanged = false;
 
+        history.record(A.get(), D.get(), PC.get(), time);
+        if (profiler != null)
+            profiler.hit(PC.get());
+
         if ((instruction & 0x8000) == 0)
             bus.send(rom, PC.get(), A, 0);
         else if ((instruction & 0xe000) == 0xe000) {
@@ -179,6 +373,7 @@ public class CPU
         }
 
         time++;
+        Metrics.cpuInstructions.increment();
     }
 
     // computes the exp part of the given instruction.
@@ -186,23 +381,10 @@ public class CPU
     // Throws ProgramException if the calculation involves M and A contains
 	// an illegal address.
     protected void computeExp(short instruction) throws ProgramException {
-        boolean indirect = (instruction & 0x1000) > 0;
-        boolean zd = (instruction & 0x0800) > 0;
-        boolean nd = (instruction & 0x0400) > 0;
-        boolean zm = (instruction & 0x0200) > 0;
-        boolean nm = (instruction & 0x0100) > 0;
-        boolean f = (instruction & 0x0080) > 0;
-        boolean no = (instruction & 0x0040) > 0;
-
-        if(assemblerTranslator == null) {
-            alu.setCommand(null, zd, nd, zm, nm, f, no);
-        } else {
-            try {
-                alu.setCommand(assemblerTranslator.getExpByCode((short) (instruction & 0xffc0)),
-                        zd, nd, zm, nm, f, no);
-            } catch (AssemblerException ae) {
-            }
-        }
+        int comp = (instruction >> 6) & 0x7f;
+        boolean indirect = (comp & 0x40) != 0;
+
+        alu.setCommand(expTexts[comp], comp);
 
         bus.send(D, 0, alu, 0); // sends D to input0 of the alu
 
@@ -240,6 +422,7 @@ public class CPU
 										   ": Destination is M but A=" +
 										   address +
 										   " is an illegal memory address.");
+            history.recordWrite(address, M.getValueAt(address));
             A.setUpdatePointer(true);
 			bus.send(alu, 2, M, address);
             A.setUpdatePointer(false);
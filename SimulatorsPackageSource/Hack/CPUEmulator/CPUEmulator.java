@@ -17,6 +17,7 @@
 
 package Hack.CPUEmulator;
 
+import java.io.*;
 import Hack.Controller.*;
 import Hack.ComputerParts.*;
 import Hack.Events.*;
@@ -24,6 +25,8 @@ import Hack.Utilities.*;
 
 /**
  * A CPU Emulator. Emulates machine code (In HACK format).
+ * When constructed with no GUI, instructions are executed by the cpu's headless
+ * execution engine, and the registers are synchronized whenever a variable is accessed.
  *
  * Recognizes the following variables:
  * A - the address register (short)
@@ -36,6 +39,16 @@ import Hack.Utilities.*;
  * Recognizes the following commands:
  * load <HACK file name> - loads the given file into the ROM
  * TickTock - advances the clock by one time unit (executes one instruction)
+ * snapshot <file name> - saves A, D, PC, time, the RAM and the ROM into a binary file
+ * restore <file name> - restores A, D, PC, time, the RAM and the ROM from a binary file
+ * profile <file name> - counts the executed instructions, and writes a hotspot report
+ *                       into the given file (and folded stacks into <file name>.folded)
+ *                       when the script ends
+ * screenshot <file name> - writes the screen into the given file: a PNG image if the
+ *                          name ends with .png, otherwise a raw 1-bit frame
+ * screenshots <cycles> <file name> - writes the screen every <cycles> time units, into
+ *                                    the given file name with the frame number
+ *                                    inserted before its extension
  */
 public class CPUEmulator extends HackSimulator implements ComputerPartErrorEventListener {
 
@@ -52,6 +65,11 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
     private static final String COMMAND_TICKTOCK = "ticktock";
     private static final String COMMAND_ROMLOAD = "load";
     private static final String COMMAND_SETVAR = "set";
+    private static final String COMMAND_SNAPSHOT = "snapshot";
+    private static final String COMMAND_RESTORE = "restore";
+    private static final String COMMAND_PROFILE = "profile";
+    private static final String COMMAND_SCREENSHOT = "screenshot";
+    private static final String COMMAND_SCREENSHOTS = "screenshots";
 
     // The simulating cpu
     private CPU cpu;
@@ -68,6 +86,23 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
     // The current animation mode
     private int animationMode;
 
+    // The file name of the current program
+    private String programFileName;
+
+    // The file name of the profiler's report
+    private String profileFileName;
+
+    // The headless screen that writes screenshots (null until first needed)
+    private ScreenCapture screenCapture;
+
+    // The interval (in time units) between screenshots, and the time of the next one
+    private long captureInterval;
+    private long nextCaptureTime;
+
+    // The file name of the periodic screenshots, and the number of the next one
+    private String captureFileName;
+    private int captureCount;
+
     /**
      * Constructs a new CPU Emulator with no GUI component.
      */
@@ -138,6 +173,7 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
         bus.reset();
 
         cpu = new CPU(ram, rom, A, D, PC, alu, bus);
+        cpu.setHistorySize(CPU.DEFAULT_HISTORY_SIZE); // the user may step back
 
         init();
     }
@@ -156,6 +192,8 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
      * Throws VariableException if the variable is not legal.
      */
     public String getValue(String varName) throws VariableException {
+        cpu.getEngine().sync();
+
         if (varName.equals(VAR_A))
             return String.valueOf(cpu.getA().get());
         else if (varName.equals(VAR_D))
@@ -176,6 +214,27 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
             throw new VariableException("Unknown variable", varName);
     }
 
+    /**
+     * Returns an accessor to the given variable, or null if it's the time.
+     * Throws VariableException if the variable is not legal.
+     */
+    public VariableAccessor getVariableAccessor(String varName) throws VariableException {
+        if (varName.equals(VAR_A))
+            return new RegisterAccessor(cpu.getA());
+        else if (varName.equals(VAR_D))
+            return new RegisterAccessor(cpu.getD());
+        else if (varName.equals(VAR_PC))
+            return new RegisterAccessor(cpu.getPC());
+        else if (varName.equals(VAR_TIME))
+            return null;
+        else if (varName.startsWith(VAR_RAM + "["))
+            return new MemoryAccessor(cpu.getRAM(), getRamIndex(varName));
+        else if (varName.startsWith(VAR_ROM + "["))
+            return new MemoryAccessor(cpu.getROM(), getRomIndex(varName));
+        else
+            throw new VariableException("Unknown variable", varName);
+    }
+
     /**
      * Sets the given variable with the given value.
      * Throws VariableException if the variable name or value are not legal.
@@ -183,6 +242,8 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
     public void setValue(String varName, String value) throws VariableException {
         int numValue;
 
+        cpu.getEngine().sync();
+
         try {
             value = Conversions.toDecimalForm(value);
 
@@ -242,7 +303,18 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
             if (command.length != 1)
                 throw new CommandException("Illegal number of arguments to command", command);
 
-            cpu.executeInstruction();
+            if (gui == null)
+                cpu.getEngine().run(1);
+            else
+                cpu.executeInstruction();
+
+            if (cpu.getEngine().isHalted())
+                notifyListeners(ControllerEvent.PROGRAM_HALTED, null);
+
+            if (captureInterval > 0 && cpu.getTime() >= nextCaptureTime) {
+                writeScreenshot(getFrameFileName(captureFileName, captureCount++));
+                nextCaptureTime += captureInterval;
+            }
         }
         else if (command[0].equals(COMMAND_SETVAR)) {
             if (command.length != 3)
@@ -253,17 +325,90 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
             if (command.length != 2)
                 throw new CommandException("Illegal number of arguments to command", command);
 
-            String fileName = (command[1].startsWith("/") ? command[1] : workingDir.getAbsolutePath() + "/" + command[1]);
-            cpu.getROM().loadProgram(fileName);
+            programFileName = getFileName(command[1]);
+            cpu.getROM().loadProgram(programFileName);
             int oldAnimationMode = animationMode;
             setAnimationMode(HackController.DISPLAY_CHANGES);
             cpu.initProgram();
             setAnimationMode(oldAnimationMode);
         }
+        else if (command[0].equals(COMMAND_SNAPSHOT)) {
+            if (command.length != 2)
+                throw new CommandException("Illegal number of arguments to command", command);
+
+            cpu.saveSnapshot(getFileName(command[1]));
+        }
+        else if (command[0].equals(COMMAND_RESTORE)) {
+            if (command.length != 2)
+                throw new CommandException("Illegal number of arguments to command", command);
+
+            cpu.loadSnapshot(getFileName(command[1]));
+        }
+        else if (command[0].equals(COMMAND_PROFILE)) {
+            if (command.length != 2)
+                throw new CommandException("Illegal number of arguments to command", command);
+
+            profileFileName = getFileName(command[1]);
+            cpu.setProfiler(new Profiler());
+        }
+        else if (command[0].equals(COMMAND_SCREENSHOT)) {
+            if (command.length != 2)
+                throw new CommandException("Illegal number of arguments to command", command);
+
+            writeScreenshot(getFileName(command[1]));
+        }
+        else if (command[0].equals(COMMAND_SCREENSHOTS)) {
+            if (command.length != 3)
+                throw new CommandException("Illegal number of arguments to command", command);
+
+            try {
+                captureInterval = Long.parseLong(command[1]);
+            } catch (NumberFormatException nfe) {
+                captureInterval = 0;
+            }
+            if (captureInterval <= 0)
+                throw new CommandException("Illegal number of cycles", command);
+
+            captureFileName = getFileName(command[2]);
+            captureCount = 0;
+            nextCaptureTime = cpu.getTime() + captureInterval;
+        }
         else
             throw new CommandException("Unknown simulator command", command);
     }
 
+    // Returns the given file name, relative to the working dir if not absolute.
+    private String getFileName(String name) {
+        return (name.startsWith("/") ? name : workingDir.getAbsolutePath() + "/" + name);
+    }
+
+    // Writes the screen into the given file, installing the screen capture on first use.
+    private void writeScreenshot(String fileName) throws ProgramException {
+        if (screenCapture == null) {
+            screenCapture = new ScreenCapture(gui != null ? gui.getScreen() : null);
+            screenCapture.copyFrom(cpu.getRAM().getContents(), Definitions.SCREEN_START_ADDRESS);
+            cpu.getRAM().setScreenGUI(screenCapture);
+        }
+
+        try {
+            screenCapture.write(fileName);
+        } catch (IOException ioe) {
+            throw new ProgramException("Can't write screenshot " + fileName + ": " + ioe.getMessage());
+        }
+    }
+
+    // Returns the given file name with the given frame number inserted before its extension.
+    private static String getFrameFileName(String fileName, int frame) {
+        String number = String.valueOf(frame);
+        while (number.length() < 6)
+            number = "0" + number;
+
+        int dot = fileName.lastIndexOf('.');
+        if (dot <= fileName.lastIndexOf('/'))
+            return fileName + number;
+        return fileName.substring(0, dot) + number + fileName.substring(dot);
+    }
+
     // Hides all highlights in GUIs.
     private void hideHighlightes() {
         cpu.getRAM().hideHighlight();
@@ -375,6 +520,37 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
     public void prepareGUI() {
     }
 
+    public void scriptEnded() throws ProgramException {
+        Profiler profiler = cpu.getProfiler();
+        if (profiler != null) {
+            cpu.setProfiler(null);
+            String programName = (programFileName != null ? programFileName : "program");
+            try {
+                profiler.writeReports(profileFileName, profileFileName + ".folded", programName,
+                                      (programFileName != null ? Profiler.loadLabels(programFileName) : null),
+                                      cpu.getROM().getContents());
+            } catch (IOException ioe) {
+                throw new ProgramException("Can't write profile " + profileFileName);
+            }
+        }
+    }
+
+    public boolean canStepBack() {
+        return cpu.getHistory().getCapacity() > 0;
+    }
+
+    public void prepareStepBack() {
+        if (!canStepBack())
+            cpu.setHistorySize(CPU.DEFAULT_HISTORY_SIZE);
+    }
+
+    public void stepBack(int count) throws ProgramException {
+        if (animationMode != HackController.NO_DISPLAY_CHANGES)
+            hideHighlightes();
+
+        cpu.stepBack(count);
+    }
+
     public String[] getVariables() {
         return vars;
     }
@@ -393,6 +569,7 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
         super.programChanged(event);
 
         if (event.getType() == ProgramEvent.LOAD) {
+            programFileName = event.getProgramFileName();
             int oldAnimationMode = animationMode;
             setAnimationMode(HackController.DISPLAY_CHANGES);
 
@@ -462,4 +639,33 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
             throw new VariableException(value +
                 " is an illegal value for", varName);
     }
+
+    // An accessor to a register of the cpu
+    class RegisterAccessor implements VariableAccessor {
+        private Register register;
+
+        public RegisterAccessor(Register register) {
+            this.register = register;
+        }
+
+        public short get() {
+            cpu.getEngine().sync();
+            return register.get();
+        }
+    }
+
+    // An accessor to an address in the RAM or the ROM
+    class MemoryAccessor implements VariableAccessor {
+        private Memory memory;
+        private int address;
+
+        public MemoryAccessor(Memory memory, int address) {
+            this.memory = memory;
+            this.address = address;
+        }
+
+        public short get() {
+            return memory.getValueAt(address);
+        }
+    }
 }
@@ -0,0 +1,305 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.CPUEmulator;
+
+import Hack.Controller.*;
+import Hack.Utilities.*;
+import Hack.Assembler.*;
+
+/**
+ * A headless execution engine for the CPU. Executes the micro-ops that the ROM
+ * decodes when a program is loaded, directly on the contents array of the RAM.
+ * Instructions are executed a basic block at a time: the flow of the program and
+ * the number of instructions left to run are checked only at the end of each block.
+ * While running, A, D & PC are kept in local variables. They are written back into
+ * the CPU's registers only when sync() is called, so the registers should not be
+ * read while the engine is attached (use sync() first).
+ * The engine bypasses the bus, the ALU and the GUIs of the registers, and should
+ * therefore be used only when no display changes are required. Writes into the
+ * screen and keyboard area still go through the RAM, so a screen GUI is kept updated.
+ * Executed instructions are recorded in the CPU's execution history, unless its
+ * size is 0, and counted by the CPU's profiler, if it has one.
+ */
+public class ExecutionEngine
+{
+    /**
+     * Micro-op of the NOP instruction.
+     */
+    public static final int OP_NOP = -1;
+
+    /**
+     * Micro-op of an illegal instruction.
+     */
+    public static final int OP_ILLEGAL = -2;
+
+    /**
+     * Flag of a compute micro-op. The lower 13 bits hold the comp, dest & jump
+     * fields of the instruction. A micro-op in the range 0..32767 loads its value into A.
+     */
+    public static final int OP_COMPUTE = 0x10000;
+
+    // Maps the sign of the ALU output (negative, zero, positive) to the jump bit
+    // that is tested for it.
+    private static final int JUMP_NEGATIVE = 4;
+    private static final int JUMP_ZERO = 2;
+    private static final int JUMP_POSITIVE = 1;
+
+    // The cpu whose state is executed
+    private CPU cpu;
+
+    // The state of the cpu while the engine is attached
+    private int a, d, pc;
+
+    // True if the engine holds the current state of A, D & PC.
+    private boolean attached;
+
+    /**
+     * Constructs a new execution engine for the given cpu.
+     */
+    public ExecutionEngine(CPU cpu) {
+        this.cpu = cpu;
+    }
+
+    /**
+     * Decodes the given instruction into a micro-op.
+     */
+    public static int decode(short instruction) {
+        int op;
+
+        if ((instruction & 0x8000) == 0)
+            op = instruction;
+        else if ((instruction & 0xe000) == 0xe000)
+            op = OP_COMPUTE | (instruction & 0x1fff);
+        else if (instruction == HackAssemblerTranslator.NOP)
+            op = OP_NOP;
+        else
+            op = OP_ILLEGAL;
+
+        return op;
+    }
+
+    /**
+     * Decodes the given program into the given micro-ops array.
+     */
+    public static void decode(short[] program, int[] ops) {
+        for (int i = 0; i < ops.length; i++)
+            ops[i] = decode(program[i]);
+    }
+
+    /**
+     * Returns true if the given micro-op ends a basic block: a compute micro-op
+     * with a jump, or an illegal instruction.
+     */
+    public static boolean isBlockEnd(int op) {
+        return op == OP_ILLEGAL || (op >= OP_COMPUTE && (op & 0x0007) != 0);
+    }
+
+    /**
+     * Splits the given micro-ops into basic blocks, and returns an array holding,
+     * for each address, the number of instructions from that address up to and
+     * including the end of its block. Since only the last instruction of a block
+     * may change the flow, a block may be entered at any address, and jump targets
+     * need not start a new block.
+     */
+    public static int[] findBlocks(int[] ops) {
+        int[] lengths = new int[ops.length];
+
+        for (int i = ops.length - 1; i >= 0; i--) {
+            if (i == ops.length - 1 || isBlockEnd(ops[i]))
+                lengths[i] = 1;
+            else
+                lengths[i] = lengths[i + 1] + 1;
+        }
+
+        return lengths;
+    }
+
+    /**
+     * Executes the given number of instructions.
+     * Throws ProgramException if an instruction is illegal or if it causes an
+     * illegal effect (as in CPU.executeInstruction()). In that case, the state
+     * of the engine is left at the instruction that caused the error.
+     */
+    public void run(long count) throws ProgramException {
+        if (!attached)
+            attach();
+
+        int[] ops = cpu.getROM().getMicroOps();
+        short[] ram = cpu.getRAM().getContents();
+        int ramSize = ram.length;
+        int a = this.a, d = this.d, pc = this.pc;
+        long time = cpu.time;
+        long startTime = time;
+
+        int[] blocks = cpu.getROM().getBlockLengths();
+        int start = pc;
+
+        ExecutionHistory history = cpu.getHistory();
+        boolean record = history.getCapacity() > 0;
+        Profiler profiler = cpu.getProfiler();
+        long[] hits = (profiler != null ? profiler.getHits() : null);
+
+        try {
+            while (count > 0) {
+                int n = blocks[pc];
+                if (n > count)
+                    n = (int)count;
+                int last = pc + n - 1;
+
+                while (true) {
+                    int op = ops[pc];
+
+                    if (record)
+                        history.record(a, d, pc, time + (pc - start));
+                    if (hits != null)
+                        hits[pc]++;
+
+                    if (op < OP_COMPUTE) {
+                        if (op >= 0)
+                            a = op;
+                        else if (op == OP_ILLEGAL)
+                            throw new ProgramException("At line " + pc + ": Illegal instruction");
+                    }
+                    else {
+                        int y;
+                        if ((op & 0x1000) != 0) {
+                            if (a < 0 || a >= ramSize)
+                                throw new ProgramException("At line " + pc +
+                                                           ": Expression involves M but A=" + a +
+                                                           " is an illegal memory address.");
+                            y = ram[a];
+                        }
+                        else
+                            y = a;
+
+                        int out = ALUTable.compute(op >> 6, d, y);
+
+                        if ((op & 0x0008) != 0) {
+                            if (a < 0 || a >= ramSize)
+                                throw new ProgramException("At line " + pc +
+                                                           ": Destination is M but A=" + a +
+                                                           " is an illegal memory address.");
+                            if (record)
+                                history.recordWrite(a, ram[a]);
+                            if (a >= Definitions.SCREEN_START_ADDRESS)
+                                cpu.getRAM().setValueAt(a, (short)out, true);
+                            else
+                                ram[a] = (short)out;
+                        }
+                        if ((op & 0x0020) != 0)
+                            a = out;
+                        if ((op & 0x0010) != 0)
+                            d = out;
+
+                        // only the last instruction of a block may jump
+                        int sign = (out < 0 ? JUMP_NEGATIVE : (out == 0 ? JUMP_ZERO : JUMP_POSITIVE));
+                        if ((op & sign) != 0) {
+                            if (a < 0)
+                                throw new ProgramException("At line " + pc + ": Jump requested but A=" +
+                                                           a + " is an illegal program address.");
+                            pc = a;
+                            break;
+                        }
+                    }
+
+                    if (pc == last) {
+                        if (pc + 1 >= Definitions.ROM_SIZE)
+                            throw new ProgramException("At line " + pc +
+                                                       ": Can't continue past last line");
+                        pc++;
+                        break;
+                    }
+                    pc++;
+                }
+
+                time += n;
+                count -= n;
+                start = pc;
+            }
+        } finally {
+            this.a = a;
+            this.d = d;
+            this.pc = pc;
+            cpu.time = time + (pc - start);
+            Metrics.cpuInstructions.add(cpu.time - startTime);
+        }
+    }
+
+    // Loads the state of A, D & PC from the cpu's registers.
+    private void attach() {
+        a = cpu.getA().get();
+        d = cpu.getD().get();
+        pc = cpu.getPC().get();
+        attached = true;
+    }
+
+    /**
+     * Writes the state of A, D & PC back into the cpu's registers and detaches
+     * the engine, so that later changes to the registers will be used by the
+     * next run.
+     */
+    public void sync() {
+        if (attached) {
+            attached = false;
+            cpu.getA().setValueAt(0, (short)a, true);
+            cpu.getD().setValueAt(0, (short)d, true);
+            cpu.getPC().setValueAt(0, (short)pc, true);
+        }
+    }
+
+    /**
+     * Detaches the engine without writing its state back into the registers.
+     */
+    public void detach() {
+        attached = false;
+    }
+
+    /**
+     * Returns true if the engine currently holds the state of A, D & PC.
+     */
+    public boolean isAttached() {
+        return attached;
+    }
+
+    /**
+     * Returns true if the cpu reached a halt loop: an unconditional jump to itself
+     * that doesn't change the state, such as the conventional "(END) @END 0;JMP".
+     * The state is taken from the engine if attached, otherwise from the registers.
+     */
+    public boolean isHalted() {
+        int a = (attached ? this.a : cpu.getA().get());
+        int pc = (attached ? this.pc : cpu.getPC().get()) & 0xffff;
+        short[] rom = cpu.getROM().getContents();
+
+        if (pc >= rom.length)
+            return false;
+
+        if ((rom[pc] & 0x8000) == 0)
+            return (rom[pc] == pc && pc + 1 < rom.length && isSelfJump(rom[pc + 1], pc));
+        else
+            return (a == pc && isSelfJump(rom[pc], a));
+    }
+
+    // Returns true if the given instruction, with the given A, is an unconditional
+    // jump to A that has no destination and doesn't read an illegal M.
+    private static boolean isSelfJump(short instruction, int a) {
+        return ((instruction & 0xe000) == 0xe000 && (instruction & 0x0038) == 0
+                && (instruction & 0x0007) == 0x0007
+                && ((instruction & 0x1000) == 0 || (a >= 0 && a < Definitions.RAM_SIZE)));
+    }
+}
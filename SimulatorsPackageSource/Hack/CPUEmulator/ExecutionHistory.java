@@ -0,0 +1,168 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.CPUEmulator;
+
+/**
+ * A bounded record of the last instructions executed by the CPU, which allows
+ * undoing them. For each instruction, the values of A, D, PC & the time before
+ * it was executed are recorded, together with the RAM address it wrote to (if any)
+ * and the previous value at that address.
+ * The records are kept in a ring of primitive arrays, so recording an instruction
+ * doesn't allocate memory. When the history is full, the oldest record is dropped.
+ */
+public class ExecutionHistory
+{
+    /**
+     * The address of a record of an instruction that didn't write to the RAM.
+     */
+    public static final short NO_ADDRESS = -1;
+
+    // The values of A, D & PC before each instruction
+    private short[] a, d, pc;
+
+    // The time before each instruction
+    private long[] times;
+
+    // The RAM address written by each instruction and its previous value
+    private short[] addresses, values;
+
+    // The index of the next record
+    private int next;
+
+    // The number of records
+    private int size;
+
+    /**
+     * Constructs a new history that holds up to the given number of records.
+     */
+    public ExecutionHistory(int capacity) {
+        a = new short[capacity];
+        d = new short[capacity];
+        pc = new short[capacity];
+        times = new long[capacity];
+        addresses = new short[capacity];
+        values = new short[capacity];
+    }
+
+    /**
+     * Returns the maximal number of records.
+     */
+    public int getCapacity() {
+        return a.length;
+    }
+
+    /**
+     * Returns the number of records, which is the number of instructions that
+     * can be undone.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Removes all the records.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Adds a record of an instruction with the given values of A, D, PC & the time
+     * before it was executed.
+     */
+    public void record(int a, int d, int pc, long time) {
+        if (this.a.length == 0)
+            return;
+
+        this.a[next] = (short)a;
+        this.d[next] = (short)d;
+        this.pc[next] = (short)pc;
+        times[next] = time;
+        addresses[next] = NO_ADDRESS;
+
+        if (++next == this.a.length)
+            next = 0;
+        if (size < this.a.length)
+            size++;
+    }
+
+    /**
+     * Records that the instruction of the last record wrote to the given RAM
+     * address, which previously held the given value.
+     */
+    public void recordWrite(int address, short value) {
+        if (size == 0)
+            return;
+
+        int last = (next == 0 ? a.length : next) - 1;
+        addresses[last] = (short)address;
+        values[last] = value;
+    }
+
+    /**
+     * Removes the last record. Its values can then be read using the getLast methods,
+     * until the next change of the history.
+     * (Assumes that the history is not empty)
+     */
+    public void removeLast() {
+        next = (next == 0 ? a.length : next) - 1;
+        size--;
+    }
+
+    /**
+     * Returns the value of A of the last removed record.
+     */
+    public short getLastA() {
+        return a[next];
+    }
+
+    /**
+     * Returns the value of D of the last removed record.
+     */
+    public short getLastD() {
+        return d[next];
+    }
+
+    /**
+     * Returns the value of PC of the last removed record.
+     */
+    public short getLastPC() {
+        return pc[next];
+    }
+
+    /**
+     * Returns the time of the last removed record.
+     */
+    public long getLastTime() {
+        return times[next];
+    }
+
+    /**
+     * Returns the RAM address written by the last removed record, or NO_ADDRESS.
+     */
+    public short getLastAddress() {
+        return addresses[next];
+    }
+
+    /**
+     * Returns the previous RAM value at the address of the last removed record.
+     */
+    public short getLastValue() {
+        return values[next];
+    }
+}
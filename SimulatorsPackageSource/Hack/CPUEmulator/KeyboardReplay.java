@@ -0,0 +1,183 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.CPUEmulator;
+
+import java.io.*;
+import java.util.*;
+import Hack.Controller.*;
+import Hack.Utilities.*;
+
+/**
+ * A deterministic keyboard, which replays a keystroke script into the keyboard
+ * memory map at exact cycle counts while the cpu runs at full speed.
+ * Each line of the script holds a cycle number and a key, which is pressed from
+ * that cycle on (and so replaces the previous key). A key is given as a decimal
+ * Hack key code (0 releases the key), a single non-digit character, or one of the names
+ * NEWLINE, BACKSPACE, LEFT, UP, RIGHT, DOWN, HOME, END, PAGEUP, PAGEDOWN, INSERT,
+ * DELETE, ESC, SPACE and F1-F12. Cycles must not decrease from line to line.
+ * Empty lines and text after "//" are ignored.
+ */
+public class KeyboardReplay {
+
+    // The maximal number of cycles between checks for a halt loop
+    private static final long HALT_CHECK_INTERVAL = 65536;
+
+    // The translation table from key names to key codes
+    private static final Hashtable keyNames = new Hashtable();
+
+    static {
+        keyNames.put("NEWLINE", Short.valueOf(Definitions.NEWLINE_KEY));
+        keyNames.put("BACKSPACE", Short.valueOf(Definitions.BACKSPACE_KEY));
+        keyNames.put("LEFT", Short.valueOf(Definitions.LEFT_KEY));
+        keyNames.put("UP", Short.valueOf(Definitions.UP_KEY));
+        keyNames.put("RIGHT", Short.valueOf(Definitions.RIGHT_KEY));
+        keyNames.put("DOWN", Short.valueOf(Definitions.DOWN_KEY));
+        keyNames.put("HOME", Short.valueOf(Definitions.HOME_KEY));
+        keyNames.put("END", Short.valueOf(Definitions.END_KEY));
+        keyNames.put("PAGEUP", Short.valueOf(Definitions.PAGE_UP_KEY));
+        keyNames.put("PAGEDOWN", Short.valueOf(Definitions.PAGE_DOWN_KEY));
+        keyNames.put("INSERT", Short.valueOf(Definitions.INSERT_KEY));
+        keyNames.put("DELETE", Short.valueOf(Definitions.DELETE_KEY));
+        keyNames.put("ESC", Short.valueOf(Definitions.ESC_KEY));
+        keyNames.put("SPACE", Short.valueOf((short)' '));
+        for (int i = 0; i < 12; i++)
+            keyNames.put("F" + (i + 1), Short.valueOf((short)(Definitions.F1_KEY + i)));
+    }
+
+    // The cycles at which keys change, and the keys
+    private long[] cycles;
+    private short[] keys;
+
+    // The number of key changes
+    private int size;
+
+    /**
+     * Constructs a new keyboard replay from the given keystroke script.
+     * Throws ProgramException if the script can't be read or has an illegal line.
+     */
+    public KeyboardReplay(String fileName) throws ProgramException {
+        cycles = new long[16];
+        keys = new short[16];
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(fileName));
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                int comment = line.indexOf("//");
+                if (comment >= 0)
+                    line = line.substring(0, comment);
+
+                StringTokenizer tokenizer = new StringTokenizer(line);
+                if (!tokenizer.hasMoreTokens())
+                    continue;
+                if (tokenizer.countTokens() != 2)
+                    throw new ProgramException("Expected a cycle and a key", lineNumber);
+
+                long cycle;
+                try {
+                    cycle = Long.parseLong(tokenizer.nextToken());
+                } catch (NumberFormatException nfe) {
+                    throw new ProgramException("Illegal cycle", lineNumber);
+                }
+                if (cycle < 0 || (size > 0 && cycle < cycles[size - 1]))
+                    throw new ProgramException("Cycles must not decrease", lineNumber);
+
+                add(cycle, parseKey(tokenizer.nextToken(), lineNumber));
+            }
+        } catch (IOException ioe) {
+            throw new ProgramException("Can't read keystroke script " + fileName);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ioe) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the given cpu until its time reaches the given number of cycles,
+     * changing the key in the keyboard memory map at the cycles of the script.
+     * The key of a cycle is set before the instruction of that cycle is executed.
+     * Stops early if the program reaches a halt loop, since no key can change it.
+     */
+    public void run(CPU cpu, long totalCycles) throws ProgramException {
+        ExecutionEngine engine = cpu.getEngine();
+        RAM ram = cpu.getRAM();
+        int next = 0;
+
+        while (true) {
+            long time = cpu.getTime();
+            while (next < size && cycles[next] <= time)
+                ram.setValueAt(Definitions.KEYBOARD_ADDRESS, keys[next++], true);
+
+            if (time >= totalCycles)
+                break;
+
+            long until = (next < size && cycles[next] < totalCycles ? cycles[next] : totalCycles);
+            engine.run(Math.min(until - time, HALT_CHECK_INTERVAL));
+
+            if (engine.isHalted())
+                break;
+        }
+    }
+
+    /**
+     * Returns the cycle of the last key change in the script (0 if empty).
+     */
+    public long getLastCycle() {
+        return (size > 0 ? cycles[size - 1] : 0);
+    }
+
+    // Adds a key change at the given cycle.
+    private void add(long cycle, short key) {
+        if (size == cycles.length) {
+            long[] newCycles = new long[size * 2];
+            System.arraycopy(cycles, 0, newCycles, 0, size);
+            cycles = newCycles;
+            short[] newKeys = new short[size * 2];
+            System.arraycopy(keys, 0, newKeys, 0, size);
+            keys = newKeys;
+        }
+
+        cycles[size] = cycle;
+        keys[size++] = key;
+    }
+
+    // Returns the key code of the given key.
+    private static short parseKey(String key, int lineNumber) throws ProgramException {
+        Short code = (Short)keyNames.get(key.toUpperCase());
+        if (code != null)
+            return code.shortValue();
+
+        try {
+            int value = Integer.parseInt(key);
+            if (value >= 0 && value <= Short.MAX_VALUE)
+                return (short)value;
+        } catch (NumberFormatException nfe) {
+            if (key.length() == 1)
+                return (short)key.charAt(0);
+        }
+
+        throw new ProgramException("Illegal key: " + key, lineNumber);
+    }
+}
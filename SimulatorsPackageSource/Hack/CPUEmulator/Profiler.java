@@ -0,0 +1,259 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.CPUEmulator;
+
+import java.io.*;
+import java.util.*;
+import Hack.Assembler.*;
+import Hack.Utilities.*;
+
+/**
+ * An execution profiler for the CPU. Counts the number of times each ROM address
+ * was executed, and writes reports that aggregate the counts by the labels of the
+ * program: a hotspot report sorted by cycles, and a folded-stack file (one
+ * "function;label count" line per label) that can be fed to flame graph tools.
+ * Each address belongs to the closest label before it. A label that contains '$'
+ * (as local labels generated by the VM translator) is reported within the closest
+ * label before it that doesn't, which is taken as its function.
+ */
+public class Profiler
+{
+    // The name of the region before the first label
+    private static final String START_LABEL = "(start)";
+
+    // The number of instructions listed in the report of the hottest instructions
+    private static final int HOTTEST_INSTRUCTIONS = 100;
+
+    // The number of times each ROM address was executed
+    private long[] hits;
+
+    /**
+     * Constructs a new profiler with zero counts.
+     */
+    public Profiler() {
+        hits = new long[Definitions.ROM_SIZE];
+    }
+
+    /**
+     * Counts an execution of the instruction at the given ROM address.
+     */
+    public void hit(int address) {
+        hits[address]++;
+    }
+
+    /**
+     * Returns the array of counts, indexed by ROM address.
+     */
+    public long[] getHits() {
+        return hits;
+    }
+
+    /**
+     * Resets all the counts to zero.
+     */
+    public void reset() {
+        for (int i = 0; i < hits.length; i++)
+            hits[i] = 0;
+    }
+
+    /**
+     * Returns the total number of counted instructions.
+     */
+    public long getTotal() {
+        long total = 0;
+        for (int i = 0; i < hits.length; i++)
+            total += hits[i];
+        return total;
+    }
+
+    /**
+     * Writes a hotspot report into the given report file and the folded stacks
+     * into the given folded file. The labels table maps the labels of the program
+     * to their addresses (Short), as returned by HackAssembler.getLabels(), and may
+     * be null if the labels are unknown. The program is used for the text of the
+     * hottest instructions.
+     */
+    public void writeReports(String reportFileName, String foldedFileName, String programName,
+                             Hashtable labels, short[] program) throws IOException {
+        // Sort the labels by address. At the same address, labels without '$' come
+        // first, so that the last one is the most specific.
+        Vector sortedLabels = new Vector();
+        if (labels != null) {
+            Enumeration names = labels.keys();
+            while (names.hasMoreElements())
+                sortedLabels.addElement(names.nextElement());
+        }
+        final Hashtable addresses = labels;
+        Collections.sort(sortedLabels, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                String l1 = (String)o1, l2 = (String)o2;
+                int diff = ((Short)addresses.get(l1)).shortValue() -
+                           ((Short)addresses.get(l2)).shortValue();
+                if (diff == 0)
+                    diff = (isLocal(l1) ? 1 : 0) - (isLocal(l2) ? 1 : 0);
+                if (diff == 0)
+                    diff = l1.compareTo(l2);
+                return diff;
+            }
+        });
+
+        // Find the label, offset and function of each address and sum the hits
+        String[] regions = new String[hits.length];
+        int[] offsets = new int[hits.length];
+        Hashtable regionHits = new Hashtable();
+        Hashtable functions = new Hashtable();
+        Vector regionOrder = new Vector();
+        String region = START_LABEL, function = START_LABEL;
+        int regionStart = 0, nextLabel = 0;
+        long total = 0;
+
+        for (int address = 0; address < hits.length; address++) {
+            while (nextLabel < sortedLabels.size() &&
+                   ((Short)labels.get(sortedLabels.elementAt(nextLabel))).shortValue() == address) {
+                region = (String)sortedLabels.elementAt(nextLabel++);
+                regionStart = address;
+                if (!isLocal(region))
+                    function = region;
+            }
+
+            regions[address] = region;
+            offsets[address] = address - regionStart;
+
+            if (hits[address] > 0) {
+                Long sum = (Long)regionHits.get(region);
+                if (sum == null) {
+                    sum = Long.valueOf(0);
+                    regionOrder.addElement(region);
+                    functions.put(region, function);
+                }
+                regionHits.put(region, Long.valueOf(sum.longValue() + hits[address]));
+                total += hits[address];
+            }
+        }
+
+        // Write the folded stacks, in address order
+        PrintWriter folded = new PrintWriter(new FileWriter(foldedFileName));
+        for (int i = 0; i < regionOrder.size(); i++) {
+            region = (String)regionOrder.elementAt(i);
+            function = (String)functions.get(region);
+            folded.println((region.equals(function) ? region : function + ";" + region) + " " +
+                           regionHits.get(region));
+        }
+        folded.close();
+
+        // Write the report of the labels, sorted by hits
+        final Hashtable sums = regionHits;
+        Vector sortedRegions = (Vector)regionOrder.clone();
+        Collections.sort(sortedRegions, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                return ((Long)sums.get(o2)).compareTo((Long)sums.get(o1));
+            }
+        });
+
+        PrintWriter report = new PrintWriter(new FileWriter(reportFileName));
+        report.println("Profile of " + programName);
+        report.println("Total instructions: " + total);
+        report.println();
+        report.println("Cycles by label:");
+        report.println(pad("cycles", 14) + pad("%", 9) + "  label");
+        for (int i = 0; i < sortedRegions.size(); i++) {
+            region = (String)sortedRegions.elementAt(i);
+            long sum = ((Long)regionHits.get(region)).longValue();
+            report.println(pad(String.valueOf(sum), 14) + pad(percent(sum, total), 9) + "  " + region);
+        }
+
+        // Write the report of the hottest instructions
+        Vector hot = new Vector();
+        for (int address = 0; address < hits.length; address++)
+            if (hits[address] > 0)
+                hot.addElement(Integer.valueOf(address));
+        Collections.sort(hot, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                long h1 = hits[((Integer)o1).intValue()], h2 = hits[((Integer)o2).intValue()];
+                return (h1 < h2 ? 1 : (h1 > h2 ? -1 : 0));
+            }
+        });
+
+        HackAssemblerTranslator translator = HackAssemblerTranslator.getInstance();
+        report.println();
+        report.println("Hottest instructions:");
+        report.println(pad("address", 8) + pad("cycles", 14) + pad("%", 9) + "  location");
+        for (int i = 0; i < hot.size() && i < HOTTEST_INSTRUCTIONS; i++) {
+            int address = ((Integer)hot.elementAt(i)).intValue();
+            String text;
+            try {
+                text = translator.codeToText(program[address]);
+            } catch (AssemblerException ae) {
+                text = "?";
+            }
+            report.println(pad(String.valueOf(address), 8) + pad(String.valueOf(hits[address]), 14) +
+                           pad(percent(hits[address], total), 9) + "  " + regions[address] + "+" +
+                           offsets[address] + "  " + text);
+        }
+        report.close();
+    }
+
+    /**
+     * Returns the labels of the given program file, as a table that maps each label
+     * to its address (Short). The labels of a .hackb file are its symbols, and the
+     * labels of a .hack file are taken from the .asm file with the same name, if exists.
+     * Returns null if the labels are unknown.
+     */
+    public static Hashtable loadLabels(String programFileName) {
+        if (programFileName.endsWith(".hackb")) {
+            try {
+                return HackAssemblerTranslator.loadBinarySymbols(programFileName);
+            } catch (AssemblerException ae) {
+                return null;
+            }
+        }
+
+        String sourceFileName = programFileName;
+        if (programFileName.endsWith(".hack"))
+            sourceFileName = programFileName.substring(0, programFileName.length() - 5) + ".asm";
+
+        if (!sourceFileName.endsWith(".asm") || !new File(sourceFileName).exists())
+            return null;
+
+        try {
+            return new SinglePassAssembler(sourceFileName).getLabels();
+        } catch (AssemblerException ae) {
+            return null;
+        }
+    }
+
+    // Returns true if the given label is local to a function.
+    private static boolean isLocal(String label) {
+        return label.indexOf('$') != -1;
+    }
+
+    // Returns the given part of the total in percents, with 2 decimal places.
+    private static String percent(long part, long total) {
+        long hundredths = (total == 0 ? 0 : part * 10000 / total);
+        String fraction = String.valueOf(hundredths % 100);
+        return (hundredths / 100) + "." + (fraction.length() == 1 ? "0" : "") + fraction;
+    }
+
+    // Pads the given string with spaces on the left to the given width.
+    private static String pad(String s, int width) {
+        StringBuffer buffer = new StringBuffer();
+        for (int i = s.length(); i < width; i++)
+            buffer.append(' ');
+        return buffer.append(s).toString();
+    }
+}
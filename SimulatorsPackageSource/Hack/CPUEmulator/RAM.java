@@ -124,6 +124,17 @@ public class RAM extends PointedMemory
             screen.reset();
     }
 
+    /**
+     * Updates the screen GUI with the current contents of the screen memory area.
+     */
+    public void refreshScreen() {
+        if (screen != null) {
+            short[] contents = new short[Definitions.KEYBOARD_ADDRESS - Definitions.SCREEN_START_ADDRESS];
+            System.arraycopy(mem, Definitions.SCREEN_START_ADDRESS, contents, 0, contents.length);
+            screen.setContents(contents);
+        }
+    }
+
     public void refreshGUI() {
         super.refreshGUI();
 
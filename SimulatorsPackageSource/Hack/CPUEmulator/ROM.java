@@ -53,6 +53,13 @@ public class ROM extends PointedMemory implements ProgramEventListener
     // listeners to program changes
     private Vector listeners;
 
+    // The program, decoded into micro-ops of the execution engine
+    private int[] microOps;
+
+    // The basic block lengths of the program (null if the program changed since
+    // they were last computed)
+    private int[] blockLengths;
+
     /**
      * Constructs a new ROM with the given ROM GUI.
      */
@@ -60,6 +67,8 @@ public class ROM extends PointedMemory implements ProgramEventListener
         super(Definitions.ROM_SIZE, gui);
         setNullValue(HackAssemblerTranslator.NOP, true);
         listeners = new Vector();
+        microOps = new int[Definitions.ROM_SIZE];
+        ExecutionEngine.decode(mem, microOps);
 
         if (hasGUI) {
           gui.addProgramListener( (ProgramEventListener)this);
@@ -82,6 +91,8 @@ public class ROM extends PointedMemory implements ProgramEventListener
                                                           HackAssemblerTranslator.NOP);
 
             mem = program;
+            ExecutionEngine.decode(mem, microOps);
+            blockLengths = null;
 
             if (displayChanges) {
                 gui.setContents(mem);
@@ -102,6 +113,42 @@ public class ROM extends PointedMemory implements ProgramEventListener
 
     }
 
+    /**
+     * Returns the program, decoded into micro-ops of the execution engine.
+     */
+    public int[] getMicroOps() {
+        return microOps;
+    }
+
+    /**
+     * Returns, for each address, the number of instructions from that address to
+     * the end of its basic block. The blocks are found again after the program
+     * is changed.
+     */
+    public synchronized int[] getBlockLengths() {
+        if (blockLengths == null)
+            blockLengths = ExecutionEngine.findBlocks(microOps);
+        return blockLengths;
+    }
+
+    public void doSetValueAt(int address, short value) {
+        super.doSetValueAt(address, value);
+        microOps[address] = ExecutionEngine.decode(value);
+        blockLengths = null;
+    }
+
+    public void setContents(short[] contents, int startAddress) {
+        super.setContents(contents, startAddress);
+        ExecutionEngine.decode(mem, microOps);
+        blockLengths = null;
+    }
+
+    public void reset() {
+        super.reset();
+        ExecutionEngine.decode(mem, microOps);
+        blockLengths = null;
+    }
+
     /**
      * Called when the ROM's current program is changed.
      * The event contains the source object, event type and the new program's file name (if any).
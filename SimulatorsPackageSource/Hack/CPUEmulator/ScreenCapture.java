@@ -0,0 +1,171 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.CPUEmulator;
+
+import java.awt.image.*;
+import java.io.*;
+import javax.imageio.ImageIO;
+import Hack.Utilities.*;
+
+/**
+ * A headless screen, which keeps a 1-bit image of the screen memory and writes
+ * it into image files. It can be used instead of a screen GUI, or in front of
+ * one, in which case all the changes are also passed to the GUI.
+ * Writes into the screen memory only mark the changed lines as dirty, and only
+ * the dirty lines are converted into the image when a frame is written.
+ * Frames are written as PNG images, or as raw frames: the 512x256 pixels in rows
+ * from top to bottom, 8 pixels per byte with the leftmost pixel in the most
+ * significant bit, and 1 for a black pixel.
+ */
+public class ScreenCapture implements ScreenGUI {
+
+    // The number of words in a line of the screen
+    private static final int WORDS_PER_LINE = Definitions.SCREEN_WIDTH / Definitions.BITS_PER_WORD;
+
+    // The bits of each byte in reverse order
+    private static final byte[] reversedBits = new byte[256];
+
+    static {
+        for (int i = 0; i < reversedBits.length; i++)
+            reversedBits[i] = (byte)(Integer.reverse(i) >>> 24);
+    }
+
+    // The screen GUI that receives all the changes (null if none)
+    private ScreenGUI next;
+
+    // The screen memory
+    private short[] data;
+
+    // A bitset of the lines that changed since the image was last updated
+    private long[] dirtyLines;
+
+    // The image of the screen and its pixels, 8 pixels per byte
+    private BufferedImage image;
+    private byte[] pixels;
+
+    /**
+     * Constructs a new screen capture in front of the given screen GUI
+     * (or with no GUI if null).
+     */
+    public ScreenCapture(ScreenGUI next) {
+        this.next = next;
+        data = new short[Definitions.SCREEN_SIZE_IN_WORDS];
+        dirtyLines = new long[(Definitions.SCREEN_HEIGHT + 63) / 64];
+
+        byte[] white = {(byte)255, 0};
+        image = new BufferedImage(Definitions.SCREEN_WIDTH, Definitions.SCREEN_HEIGHT,
+                                  BufferedImage.TYPE_BYTE_BINARY,
+                                  new IndexColorModel(1, 2, white, white, white));
+        pixels = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Copies the screen memory from the given memory array, starting at the given
+     * address, without passing it to the screen GUI.
+     */
+    public synchronized void copyFrom(short[] memory, int startAddress) {
+        System.arraycopy(memory, startAddress, data, 0, data.length);
+        markAllDirty();
+    }
+
+    public synchronized void setValueAt(int index, short value) {
+        data[index] = value;
+        dirtyLines[index / WORDS_PER_LINE >> 6] |= 1L << (index / WORDS_PER_LINE & 63);
+
+        if (next != null)
+            next.setValueAt(index, value);
+    }
+
+    public synchronized void setContents(short[] values) {
+        System.arraycopy(values, 0, data, 0, Math.min(values.length, data.length));
+        markAllDirty();
+
+        if (next != null)
+            next.setContents(values);
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < data.length; i++)
+            data[i] = 0;
+        markAllDirty();
+
+        if (next != null)
+            next.reset();
+    }
+
+    public void refresh() {
+        if (next != null)
+            next.refresh();
+    }
+
+    public void startAnimation() {
+        if (next != null)
+            next.startAnimation();
+    }
+
+    public void stopAnimation() {
+        if (next != null)
+            next.stopAnimation();
+    }
+
+    /**
+     * Writes the current screen into the given file: a PNG image if the file
+     * name ends with ".png", otherwise a raw frame.
+     */
+    public synchronized void write(String fileName) throws IOException {
+        updateImage();
+
+        if (fileName.toLowerCase().endsWith(".png")) {
+            if (!ImageIO.write(image, "png", new File(fileName)))
+                throw new IOException("PNG images are not supported");
+        }
+        else {
+            FileOutputStream out = new FileOutputStream(fileName);
+            try {
+                out.write(pixels);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    // Marks all the lines as dirty.
+    private void markAllDirty() {
+        for (int i = 0; i < dirtyLines.length; i++)
+            dirtyLines[i] = -1;
+    }
+
+    // Converts the dirty lines from the screen memory into the image's pixels.
+    private void updateImage() {
+        for (int line = 0; line < Definitions.SCREEN_HEIGHT; line++) {
+            if ((dirtyLines[line >> 6] & (1L << (line & 63))) == 0)
+                continue;
+
+            int index = line * WORDS_PER_LINE;
+            int pixel = index * 2;
+            for (int word = 0; word < WORDS_PER_LINE; word++) {
+                int value = data[index++];
+                pixels[pixel++] = reversedBits[value & 0xff];
+                pixels[pixel++] = reversedBits[(value >> 8) & 0xff];
+            }
+        }
+
+        for (int i = 0; i < dirtyLines.length; i++)
+            dirtyLines[i] = 0;
+    }
+}
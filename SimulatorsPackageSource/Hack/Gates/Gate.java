@@ -18,6 +18,7 @@
 package Hack.Gates;
 
 import java.util.*;
+import Hack.Utilities.*;
 
 /**
  * A chip instance.
@@ -163,6 +164,7 @@ public abstract class Gate {
                     ((DirtyGateListener)dirtyGateListeners.elementAt(i)).gotClean();
         }
 
+        Metrics.gateEvaluations++;
         reCompute();
     }
 
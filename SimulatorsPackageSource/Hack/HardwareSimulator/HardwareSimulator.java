@@ -188,6 +188,21 @@ public class HardwareSimulator extends HackSimulator
         return result;
     }
 
+    /**
+     * Returns an accessor to the given variable if it's a pin of the current gate,
+     * otherwise null.
+     * Throws VariableException if no gate is loaded.
+     */
+    public VariableAccessor getVariableAccessor(String varName) throws VariableException {
+        if (gate == null)
+            throw new VariableException("cannot get var's value since no gate is currently loaded", varName);
+
+        if (!varName.equals(VAR_TIME) && gate.getNode(varName) != null)
+            return new NodeAccessor(varName);
+        else
+            return null;
+    }
+
     // Returns the BuiltInGateWithGUI that matches the given chip name, or
     // null if doesn't exist.
     private BuiltInGateWithGUI getGUIChip(String chipName) {
@@ -753,6 +768,7 @@ public class HardwareSimulator extends HackSimulator
         gate.tock();
         clockUp = false;
         time++;
+        Metrics.hardwareTicks++;
 
         if (gui != null)
             updateTime();
@@ -819,4 +835,30 @@ public class HardwareSimulator extends HackSimulator
             performTock();
         }
     }
+
+    // An accessor to a pin of the current gate. The pin is looked up again
+    // whenever another gate is loaded.
+    class NodeAccessor implements VariableAccessor {
+        private String name;
+        private Gate nodeGate;
+        private Node node;
+
+        public NodeAccessor(String name) {
+            this.name = name;
+        }
+
+        public short get() throws VariableException {
+            if (nodeGate != gate) {
+                if (gate == null)
+                    throw new VariableException("cannot get var's value since no gate is currently loaded", name);
+                node = gate.getNode(name);
+                nodeGate = gate;
+            }
+
+            if (node == null)
+                throw new VariableException("Unknown variable", name);
+
+            return node.get();
+        }
+    }
 }
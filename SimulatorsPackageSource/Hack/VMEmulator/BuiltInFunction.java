@@ -0,0 +1,202 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.VMEmulator;
+
+import Hack.Controller.ProgramException;
+import java.io.File;
+import java.lang.invoke.*;
+import java.lang.reflect.*;
+
+/**
+ * A built-in implementation of a vm function: a static method of a subclass of
+ * BuiltInVMClass in the built-in dir, which takes the function's arguments as
+ * shorts. The method is looked up once, when the program that calls the
+ * function is loaded, and is bound to a method handle that takes the
+ * arguments as a short array and returns a short.
+ */
+class BuiltInFunction {
+
+	// The type of the method handles of all the built-in functions
+	private static final MethodType FUNCTION_TYPE =
+		MethodType.methodType(short.class, short[].class);
+
+	// Converts a boolean return value to a vm boolean
+	private static final MethodHandle BOOLEAN_TO_SHORT;
+	static {
+		try {
+			BOOLEAN_TO_SHORT = MethodHandles.lookup().findStatic(
+				BuiltInFunction.class, "booleanToShort",
+				MethodType.methodType(short.class, boolean.class));
+		} catch (ReflectiveOperationException roe) {
+			throw new ExceptionInInitializerError(roe);
+		}
+	}
+
+	// The name of the vm function
+	private String functionName;
+
+	// The number of arguments of the vm function
+	private int numberOfArguments;
+
+	// The name of the implementing method
+	private String methodName;
+
+	// The implementing method, or null if it wasn't found
+	private MethodHandle handle;
+
+	// The reason why the implementing method wasn't found
+	private String error;
+
+	// True if the function returned at least once
+	boolean completed;
+
+	// True if the function called VM code
+	boolean callsVMCode;
+
+	/**
+	 * Constructs a new BuiltInFunction for the vm function with the given name
+	 * which takes the given number of arguments, implemented in the given
+	 * built-in dir. If no implementation is found, calling the function
+	 * throws a ProgramException.
+	 */
+	BuiltInFunction(File builtInDir, String functionName, int numberOfArguments) {
+		this.functionName = functionName;
+		this.numberOfArguments = numberOfArguments;
+		try {
+			handle = findHandle(builtInDir);
+		} catch (ProgramException pe) {
+			error = pe.getMessage();
+		}
+	}
+
+	/**
+	 * Returns the name of the vm function.
+	 */
+	String getFunctionName() {
+		return functionName;
+	}
+
+	/**
+	 * Returns the number of arguments of the vm function.
+	 */
+	int getNumberOfArguments() {
+		return numberOfArguments;
+	}
+
+	/**
+	 * Runs the built-in implementation with the given params on the current
+	 * thread and returns its return value.
+	 * Throws a ProgramException if no built-in implementation was found or
+	 * if the implementation throws an exception.
+	 */
+	short invoke(short[] params)
+			throws ProgramException, TerminateVMProgramThrowable {
+		if (handle == null) {
+			throw new ProgramException(error);
+		}
+		try {
+			return (short)handle.invokeExact(params);
+		} catch (TerminateVMProgramThrowable e) {
+			throw e;
+		} catch (Throwable t) {
+			// Error in the built-in function - abort VM program
+			throw new ProgramException("The built-in implementation of "+methodName+" caused an exception: "+t.toString());
+		}
+	}
+
+	// Searches for the method that implements the function and returns it
+	// as a method handle of type FUNCTION_TYPE.
+	// Throws a ProgramException if no built-in implementation was found.
+	private MethodHandle findHandle(File builtInDir) throws ProgramException {
+        int dotLocation = functionName.indexOf(".");
+        if (dotLocation == -1) {
+            throw new ProgramException("Illegal function name: " + functionName);
+		}
+        String className = functionName.substring(0, dotLocation);
+		methodName = functionName.substring(dotLocation+1, functionName.length());
+		if (methodName.equals("new")) {
+			// new is a reserved Java word - therefore Jack functions named
+			// new are implemented by Java functions named NEW.
+			methodName = "NEW";
+		}
+		
+		// Find the implementing class
+		Class implementingClass;
+		try {
+			implementingClass = Class.forName(builtInDir+"."+className);
+		} catch (ClassNotFoundException cnfe) {
+			throw new ProgramException("Can't find "+className+".vm or a built-in implementation for class "+className);
+		}
+
+		// Check that the class is a subclass of BuiltInVMClass
+		// (right now not that important if the class doesn't want to access
+		// the computer - like math - but good practice anyway).
+		Class currentClass = implementingClass;
+		boolean found;
+		do {
+			currentClass = currentClass.getSuperclass();
+			found = currentClass.getName().equals("Hack.VMEmulator.BuiltInVMClass");
+		} while (!found && !currentClass.getName().equals("java.lang.Object"));
+		if (!found) {
+			throw new ProgramException("Built-in implementation for "+className+" is not a subclass of BuiltInVMClass");
+		}
+
+		// Find the implementing method
+		Class[] paramsClasses = new Class[numberOfArguments];
+		for (int i=0; i<numberOfArguments; ++i) {
+			paramsClasses[i] = short.class;
+		}
+
+		Method functionObject;
+		try {
+			functionObject =
+				implementingClass.getDeclaredMethod(methodName, paramsClasses);
+		} catch (NoSuchMethodException nsme) {
+			throw new ProgramException("Can't find "+className+".vm or a built-in implementation for function "+methodName+" in class "+className+" taking "+numberOfArguments+" argument"+(numberOfArguments==1?"":"s")+".");
+		}
+		Class returnType = functionObject.getReturnType();
+		if (returnType != short.class && returnType != void.class &&
+			returnType != char.class && returnType != boolean.class) {
+			throw new ProgramException("Can't find "+className+".vm and the built-in implementation for "+functionName+" taking "+numberOfArguments+" arguments doesn't return short/char/void/boolean.");
+		}
+
+		// Bind the method to a handle of type FUNCTION_TYPE
+		MethodHandle methodHandle;
+		try {
+			if (!Modifier.isStatic(functionObject.getModifiers())) {
+				throw new IllegalAccessException();
+			}
+			methodHandle = MethodHandles.publicLookup().unreflect(functionObject);
+		} catch (IllegalAccessException iae) {
+			throw new ProgramException("Error trying to run the built-in implementation of "+methodName);
+		}
+		if (returnType == boolean.class) {
+			methodHandle = MethodHandles.filterReturnValue(methodHandle, BOOLEAN_TO_SHORT);
+		} else { // void returns 0, char is cast to short
+			methodHandle = MethodHandles.explicitCastArguments(methodHandle,
+				methodHandle.type().changeReturnType(short.class));
+		}
+		return methodHandle.asSpreader(short[].class, numberOfArguments)
+						   .asType(FUNCTION_TYPE);
+	}
+
+	// Returns the vm representation of the given boolean.
+	private static short booleanToShort(boolean value) {
+		return value ? (short)-1 : 0;
+	}
+}
@@ -20,15 +20,31 @@ package Hack.VMEmulator;
 import Hack.Controller.ProgramException;
 import Hack.Utilities.Definitions;
 import java.io.File;
-import java.lang.reflect.*;
+import java.util.*;
 
 /**
- * A class that runs built-in VM code as a coroutine so that
- * built-in code may pause and call VM code that the user may debug and step
- * through.
+ * A class that runs built-in VM code.
+ * Built-in functions are run directly on the VM emulator thread, and the
+ * built-in functions that they call are run re-entrantly on the same thread.
+ * Built-in functions that call VM code (such as Sys.init, which calls
+ * Main.main) are run as a coroutine on a thread of their own, so that they
+ * may pause and call VM code that the user may debug and step through.
+ * A built-in function is run directly only after it returned without calling
+ * VM code, and only if the program doesn't implement a built-in class in VM
+ * code, which built-in functions may call on errors only. If a function
+ * that is run directly calls VM code anyway, the VM code is run until it
+ * returns (or halts) within the current step.
+ * If the system property hack.vm.builtInThread is set to true, all the
+ * built-in functions that are called by VM code are run on the thread.
  */
 public class BuiltInFunctionsRunner implements Runnable {
 
+	/**
+	 * The system property that makes all the built-in functions that are
+	 * called by VM code run on the built-in code runner thread.
+	 */
+	public static final String THREAD_PROPERTY = "hack.vm.builtInThread";
+
 	// Message types between threads
 	private static final int CALL_REQUEST = 0;
 	private static final int RETURN_REQUEST = 1;
@@ -40,19 +56,18 @@ public class BuiltInFunctionsRunner implements Runnable {
 	private class BuiltInToProgramRequest {
 		int request;
 		String details;
-		short[] params;
 		short returnValue;
 	}
     private class ProgramToBuiltInRequest {
 		int request;
-		Method functionObject;
-		Object[] params;
+		BuiltInFunction function;
+		short[] params;
 		short returnValue;
 	};
 	private BuiltInToProgramRequest builtInToProgram;
 	private ProgramToBuiltInRequest programToBuiltIn;
 
-	// The thread that runs the built-in code
+	// The thread that runs the built-in code which calls VM code
 	private Thread thread;
 
 	// The CPU that communicates with this class
@@ -60,7 +75,29 @@ public class BuiltInFunctionsRunner implements Runnable {
 
 	// The built-in dir
 	private File builtInDir;
-	
+
+	// If true, all the built-in functions that are called by VM code are
+	// run on the thread
+	private boolean threadOnly;
+
+	// The running built-in functions, the innermost last
+	private Vector runningFunctions;
+
+	// The number of built-in functions running on the VM emulator thread
+	private int directCalls;
+
+	// Set when the function that was called by a built-in function on the
+	// current thread returned, with its return value
+	private boolean returned;
+	private short returnValue;
+
+	// Set when a built-in function that was called by a built-in function on
+	// the current thread terminated the program
+	private boolean terminated;
+
+	// The error that terminated the built-in functions on the VM emulator thread
+	private ProgramException directException;
+
 	/********************** Code common to both threads *****/
 
 	/**
@@ -79,6 +116,105 @@ public class BuiltInFunctionsRunner implements Runnable {
 		}
 	}
 
+	/**
+	 * Called by the VM emulator, or by a built-in function through
+	 * callFunctionFromBuiltIn. Calls the given built-in function with the
+	 * given params and returns its return value through
+	 * cpu.returnFromBuiltInFunction.
+	 * The function is called on the current thread, unless it is called by
+	 * VM code and it may call VM code, in which case the built-in code runner
+	 * thread is told to call it.
+	 * Throws a ProgramException if no built-in implementation was found.
+	 */
+	void callBuiltInFunction(BuiltInFunction function, short[] params) throws ProgramException {
+		boolean emulatorThread = (Thread.currentThread() != thread);
+		if (emulatorThread && directCalls == 0 &&
+			(threadOnly || !function.completed || function.callsVMCode)) {
+			programToBuiltIn.request = CALL_REQUEST;
+			programToBuiltIn.function = function;
+			programToBuiltIn.params = params;
+			sendBuiltInRequestAndWaitForAnswer();
+			return;
+		}
+
+		short returnValue;
+		if (emulatorThread && directCalls++ == 0) {
+			BuiltInVMClass.associateForThread(this);
+		}
+		try {
+			returnValue = invoke(function, params);
+		} catch (TerminateVMProgramThrowable e) {
+			if (!emulatorThread || directCalls > 1) {
+				// The calling built-in function should exit as well
+				terminated = true;
+			} else if (directException != null) {
+				// All the built-in functions on this thread exited
+				throw directException;
+			}
+			return;
+		} finally {
+			if (emulatorThread && --directCalls == 0) {
+				directException = null;
+				BuiltInVMClass.dissociateForThread();
+			}
+		}
+		cpu.returnFromBuiltInFunction(returnValue);
+	}
+
+	/**
+	 * Called by the VM emulator. Returns the given value to the built-in
+	 * function that called the function which returned. If the built-in
+	 * function runs on the built-in code runner thread, tells the thread
+	 * to resume it.
+	 */
+	public void returnToBuiltInFunction(short returnValue) throws ProgramException {
+		if (Thread.currentThread() == thread || directCalls > 0) {
+			returned = true;
+			this.returnValue = returnValue;
+		} else {
+			programToBuiltIn.request = RETURN_REQUEST;
+			programToBuiltIn.returnValue = returnValue;
+			sendBuiltInRequestAndWaitForAnswer();
+		}
+	}
+
+	/**
+	 * Runs the given built-in function with the given params on the current
+	 * thread and returns its return value.
+	 * Throws a ProgramException if the function can't be run or throws an
+	 * exception.
+	 */
+	private short invoke(BuiltInFunction function, short[] params)
+			throws ProgramException, TerminateVMProgramThrowable {
+		short returnValue;
+		runningFunctions.addElement(function);
+		try {
+			returnValue = function.invoke(params);
+		} finally {
+			runningFunctions.removeElementAt(runningFunctions.size() - 1);
+		}
+		function.completed = true;
+		return returnValue;
+	}
+
+	/**
+	 * Stops the VM program with the given error and returns a
+	 * TerminateVMProgramThrowable for the built-in code to throw.
+	 * On the built-in code runner thread, notifies the vm emulator
+	 * Thread that an exception occured and waits for a signal from it.
+	 */
+	private TerminateVMProgramThrowable programError(ProgramException pe) {
+		if (Thread.currentThread() == thread) {
+			builtInToProgram.request = THROW_PROGRAM_EXCEPTION_REQUEST;
+			builtInToProgram.details = pe.getMessage();
+			continueOtherThread();
+			// now programToBuiltIn.request == END_PROGRAM_REQUEST
+		} else if (directException == null) {
+			directException = pe;
+		}
+		return new TerminateVMProgramThrowable();
+	}
+
 	/********************** Code run by the VM Emulator	thread *****/
 
     /**
@@ -91,6 +227,7 @@ public class BuiltInFunctionsRunner implements Runnable {
 		this.builtInDir = builtInDir;
 		builtInToProgram = new BuiltInToProgramRequest();
 		programToBuiltIn = new ProgramToBuiltInRequest();
+		runningFunctions = new Vector();
 		thread = new Thread(this);
 		synchronized (this) {
 			thread.start();
@@ -107,85 +244,22 @@ public class BuiltInFunctionsRunner implements Runnable {
 	public void killAllRunningBuiltInFunctions() {
 		programToBuiltIn.request = END_PROGRAM_REQUEST;
 		continueOtherThread();
+		// The program may have changed
+		threadOnly = Boolean.getBoolean(THREAD_PROPERTY) || implementsBuiltInClass();
 	}
 
-	/**
-	 * Called by the VM emulator. Tells	the built-in code runner thread
-	 * to resume an already-running built-in function which was waiting for
-	 * a return value from another function.
-	 */
-	public void returnToBuiltInFunction(short returnValue) throws ProgramException {
-		programToBuiltIn.request = RETURN_REQUEST;
-		programToBuiltIn.returnValue = returnValue;
-		sendBuiltInRequestAndWaitForAnswer();
-	}
-
-	/**
-	 * Called by the VM emulator. Searches for a built-in vm function by its
-	 * name and number of parameters (the length of the params array).
-	 * If found - tells the built-in code runner thread
-	 * to call the named built-in function with the given params.
-	 * Throws a ProgramException if no built-in implementation was found.
-	 */
-	public void callBuiltInFunction(String functionName, short[] params) throws ProgramException {
-        int dotLocation = functionName.indexOf(".");
-        if (dotLocation == -1) {
-            throw new ProgramException("Illegal function name: " + functionName);
-		}
-        String className = functionName.substring(0, dotLocation);
-		String methodName = functionName.substring(dotLocation+1, functionName.length());
-		if (methodName.equals("new")) {
-			// new is a reserved Java word - therefore Jack functions named
-			// new are implemented by Java functions named NEW.
-			methodName = "NEW";
-		}
-		
-		// Find the implementing class
-		Class implementingClass;
-		try {
-			implementingClass = Class.forName(builtInDir+"."+className);
-		} catch (ClassNotFoundException cnfe) {
-			throw new ProgramException("Can't find "+className+".vm or a built-in implementation for class "+className);
-		}
-
-		// Check that the class is a subclass of BuiltInVMClass
-		// (right now not that important if the class doesn't want to access
-		// the computer - like math - but good practice anyway).
-		Class currentClass = implementingClass;
-		boolean found;
-		do {
-			currentClass = currentClass.getSuperclass();
-			found = currentClass.getName().equals("Hack.VMEmulator.BuiltInVMClass");
-		} while (!found && !currentClass.getName().equals("java.lang.Object"));
-		if (!found) {
-			throw new ProgramException("Built-in implementation for "+className+" is not a subclass of BuiltInVMClass");
-		}
-
-		// Find the implementing method & fill in the request
-		Class[] paramsClasses = new Class[params.length];
-		Object[] requestParams = new Object[params.length];
-		for (int i=0; i<params.length; ++i) {
-			requestParams[i] = new Short(params[i]);
-			paramsClasses[i] = short.class;
-		}
-
-		Method functionObject;
-		try {
-			functionObject =
-				implementingClass.getDeclaredMethod(methodName, paramsClasses);
-		} catch (NoSuchMethodException nsme) {
-			throw new ProgramException("Can't find "+className+".vm or a built-in implementation for function "+methodName+" in class "+className+" taking "+params.length+" argument"+(params.length==1?"":"s")+".");
-		}
-		Class returnType = functionObject.getReturnType();
-		if (returnType != short.class && returnType != void.class &&
-			returnType != char.class && returnType != boolean.class) {
-			throw new ProgramException("Can't find "+className+".vm and the built-in implementation for "+functionName+" taking "+params.length+" arguments doesn't return short/char/void/boolean.");
+	// Returns true if the program implements in VM code a class that has
+	// a built-in implementation.
+	private boolean implementsBuiltInClass() {
+		Enumeration classNames = cpu.getProgram().getClassNames();
+		while (classNames.hasMoreElements()) {
+			try {
+				Class.forName(builtInDir+"."+classNames.nextElement());
+				return true;
+			} catch (ClassNotFoundException cnfe) {
+			}
 		}
-		programToBuiltIn.request = CALL_REQUEST;
-		programToBuiltIn.params = requestParams;
-		programToBuiltIn.functionObject = functionObject;
-			
-		sendBuiltInRequestAndWaitForAnswer();
+		return false;
 	}
 
 	/**
@@ -194,8 +268,8 @@ public class BuiltInFunctionsRunner implements Runnable {
 	 * VM Emulator.
 	 * If a built-in function finished, calls
 	 * cpu.returnFromBuiltInFunction with the return value.
-	 * If the function requested another function call,
-	 * calls cpu.callFunctionFromBuiltIn with the function name and parameters.
+	 * If the function called a vm function, the call was already made
+	 * by the built-in thread and the VM emulator should just go on running.
 	 * If an exception was thrown by a built-in function, throws a
 	 * ProgramException.
 	 */
@@ -203,8 +277,6 @@ public class BuiltInFunctionsRunner implements Runnable {
 		continueOtherThread();
 		switch(builtInToProgram.request) {
 		case CALL_REQUEST:
-			cpu.callFunctionFromBuiltIn(builtInToProgram.details,
-										builtInToProgram.params);
 			break;
 		case RETURN_REQUEST:
 			cpu.returnFromBuiltInFunction(builtInToProgram.returnValue);
@@ -233,12 +305,9 @@ public class BuiltInFunctionsRunner implements Runnable {
 			BuiltInVMClass.associateForThread(this);
 			while (true) {
 				try {
-					// Tell the VM Emulator that we finished init
-					// by issueing a request for calling a "null function" -
-					// The emulator expects us to tell it we finished init
-					// and will ignore the actual function call request and
-					// continue as normal.
-					builtInFunctionRequestsCall(null, null);
+					// Tell the VM Emulator that we finished init and wait
+					// for calls. The emulator ignores the request.
+					waitForReturn();
 				} catch (TerminateVMProgramThrowable e) {
 					continue;
 				}
@@ -247,59 +316,28 @@ public class BuiltInFunctionsRunner implements Runnable {
 		}
 	}
 
-    /**
-     * Called by a built-in function through the BuiltInVMClass class.
-	 * Requests that the VM Emulator run a function (either built-in or not).
-	 * Once the function completes, the function's return value is returned.
-	 * If due to a user's request or due to an error the VM program is
-	 * required to terminate, a TerminateVMProgramThrowable object is thrown.
-	 * The calling built-in function may catch this object, perform any
-	 * necessary cleanups, and rethrow it.
-     */
-	public short builtInFunctionRequestsCall(String functionName, short[] params) throws TerminateVMProgramThrowable {
+	/**
+	 * Relinquishes control to the VM emulator, which runs VM code that a
+	 * built-in function called, and runs the built-in functions that it
+	 * calls meanwhile. Once the VM code returns, its return value is returned.
+	 * Throws a TerminateVMProgramThrowable if the program is terminated.
+	 */
+	private short waitForReturn() throws TerminateVMProgramThrowable {
 		builtInToProgram.request = CALL_REQUEST;
-		builtInToProgram.details = functionName;
-		builtInToProgram.params = params;
 		// Wait for a command and loop while we're getting call commands
 		for(continueOtherThread(); programToBuiltIn.request == CALL_REQUEST;
 			continueOtherThread()) {
 			try { // Try to run the built-in implementation
 				// programToBuiltIn might be overwritten until the return
-				// from the call. Save what's needed.
-				Class returnType = programToBuiltIn.functionObject.getReturnType();
-				functionName =
-					programToBuiltIn.functionObject.getName();
-				// Execute
-				Object returnValue =
-					programToBuiltIn.functionObject.invoke(null,
-														   programToBuiltIn.params);
+				// from the call, so the return value is set afterwards.
+				short returnValue = invoke(programToBuiltIn.function,
+										   programToBuiltIn.params);
 				builtInToProgram.request = RETURN_REQUEST;
-				if (returnType == short.class) {
-					builtInToProgram.returnValue = ((Short)returnValue).shortValue();
-				} else if (returnType == char.class) {
-					builtInToProgram.returnValue = (short)((Character)returnValue).charValue();
-				} else if (returnType == boolean.class) {
-					if (((Boolean)returnValue).booleanValue()) {
-						builtInToProgram.returnValue = (short)-1;
-					} else {
-						builtInToProgram.returnValue = 0;
-					}
-				} else { // returnType == void.class
-					builtInToProgram.returnValue = 0;
-				}
-			} catch (IllegalAccessException iae) {
+				builtInToProgram.returnValue = returnValue;
+			} catch (ProgramException pe) {
 				// Error running - abort VM program
 				builtInToProgram.request = THROW_PROGRAM_EXCEPTION_REQUEST;
-				builtInToProgram.details = "Error trying to run the built-in implementation of "+functionName;
-			} catch (InvocationTargetException ita) {
-				// Rethrow a TerminateVMProgramThrowable object that was thrown
-				try {
-					throw (TerminateVMProgramThrowable)ita.getTargetException();
-				} catch (ClassCastException cce) {
-					// Error in the built-in function - abort VM program
-					builtInToProgram.request = THROW_PROGRAM_EXCEPTION_REQUEST;
-					builtInToProgram.details = "The built-in implementation of "+functionName+" caused an exception: "+ita.getTargetException().toString();
-				}
+				builtInToProgram.details = pe.getMessage();
 			}
 		}
 		if (programToBuiltIn.request == RETURN_REQUEST) {
@@ -309,21 +347,58 @@ public class BuiltInFunctionsRunner implements Runnable {
 		}
 	}
 
+	/********************** Code run by built-in functions on either thread *****/
+
+    /**
+     * Called by a built-in function through the BuiltInVMClass class.
+	 * Requests that the VM Emulator run a function (either built-in or not).
+	 * Once the function completes, the function's return value is returned.
+	 * If due to a user's request or due to an error the VM program is
+	 * required to terminate, a TerminateVMProgramThrowable object is thrown.
+	 * The calling built-in function may catch this object, perform any
+	 * necessary cleanups, and rethrow it.
+     */
+	public short builtInFunctionRequestsCall(String functionName, short[] params) throws TerminateVMProgramThrowable {
+		returned = false;
+		try {
+			cpu.callFunctionFromBuiltIn(functionName, params);
+			if (!returned && !terminated) {
+				// VM code was called
+				for (int i=0; i<runningFunctions.size(); ++i) {
+					((BuiltInFunction)runningFunctions.elementAt(i)).callsVMCode = true;
+				}
+				if (Thread.currentThread() == thread) {
+					return waitForReturn();
+				}
+				// Run the VM code until it returns (or the program halts)
+				while (!returned && !terminated) {
+					if (cpu.getProgram().isHalted()) {
+						throw new TerminateVMProgramThrowable();
+					}
+					cpu.executeInstruction();
+				}
+			}
+		} catch (ProgramException pe) {
+			throw programError(pe);
+		}
+		if (terminated) {
+			terminated = false;
+			throw new TerminateVMProgramThrowable();
+		}
+		returned = false;
+		return returnValue;
+	}
+
 	/**
 	 * Makes sure an address that a built-in function requested
-	 * to write/read from is legal. If not - notifies the vm emulator
-	 * Thread that an exception occured, waits for a signal from it and
-	 * throws a TerminateVMProgramThrowable.
+	 * to write/read from is legal. If not - stops the program with an
+	 * error and throws a TerminateVMProgramThrowable.
 	 */
 	private void checkMemoryAddress(short address) throws TerminateVMProgramThrowable {
         if (!((address >= Definitions.HEAP_START_ADDRESS && address <= Definitions.HEAP_END_ADDRESS) ||
               (address >= Definitions.SCREEN_START_ADDRESS && address <= Definitions.SCREEN_END_ADDRESS) ||
               address == 0)) {
-			builtInToProgram.request = THROW_PROGRAM_EXCEPTION_REQUEST;
-			builtInToProgram.details = "A built-in function tried to access memory outside the Heap or Screen range";
-			continueOtherThread();
-			// now programToBuiltIn.request == END_PROGRAM_REQUEST
-			throw new TerminateVMProgramThrowable();
+			throw programError(new ProgramException("A built-in function tried to access memory outside the Heap or Screen range"));
 		}
 	}
 
@@ -338,10 +413,14 @@ public class BuiltInFunctionsRunner implements Runnable {
 	 */
 	public void builtInFunctionRequestsInfiniteLoop(String message)
 			throws TerminateVMProgramThrowable {
-		builtInToProgram.request = INFINITE_LOOP_REQUEST;
-		builtInToProgram.details = message;
-		continueOtherThread();
-		// now programToBuiltIn.request == END_PROGRAM_REQUEST
+		if (Thread.currentThread() == thread) {
+			builtInToProgram.request = INFINITE_LOOP_REQUEST;
+			builtInToProgram.details = message;
+			continueOtherThread();
+			// now programToBuiltIn.request == END_PROGRAM_REQUEST
+		} else {
+			cpu.infiniteLoopFromBuiltIn(message);
+		}
 		throw new TerminateVMProgramThrowable();
 	}
 
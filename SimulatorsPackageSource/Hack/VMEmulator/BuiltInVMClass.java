@@ -146,4 +146,14 @@ public abstract class BuiltInVMClass {
 		builtInFunctionsRunnerByThread.put(Thread.currentThread(), bifr);
 	}
 
+	/**
+	 * The following function should not be called by an implementing class:
+	 *
+	 * Called by a BuiltInFunctionsRunner when it stops forwarding the calls
+	 * from built-in functions executed from this thread.
+	 */
+	static final void dissociateForThread() {
+		builtInFunctionsRunnerByThread.remove(Thread.currentThread());
+	}
+
 }
@@ -18,7 +18,6 @@
 package Hack.VMEmulator;
 
 import Hack.ComputerParts.*;
-import java.util.*;
 import java.io.*;
 import Hack.Utilities.*;
 import Hack.CPUEmulator.RAM;
@@ -62,12 +61,20 @@ public class CPU {
     // A mapping from memory segment codes to the MemorySegment objects (not including stack).
     private MemorySegment[] segments;
 
-    // A stack of method frame addresses
-    private Vector stackFrames;
+    // A stack of method frame addresses and its size
+    private int[] stackFrames;
+    private int numberOfStackFrames;
 
     // The last instruction that was executed.
     private VMEmulatorInstruction currentInstruction;
 
+    // The contents of the RAM
+    private short[] memory;
+
+    // If false, the arithmetic, memory access and goto instructions are executed
+    // directly on the contents of the RAM
+    private boolean displayChanges;
+
 	// Runner for built-in vm code
 	private BuiltInFunctionsRunner builtInFunctionsRunner;
 
@@ -86,6 +93,7 @@ public class CPU {
         this.program = program;
         this.ram = ram;
         this.callStack = callStack;
+        callStack.setProgram(program);
         this.calculator = calculator;
         this.bus = bus;
 
@@ -105,7 +113,9 @@ public class CPU {
         segments[HVMInstructionSet.THAT_SEGMENT_CODE] = thatSegment;
         segments[HVMInstructionSet.TEMP_SEGMENT_CODE] = tempSegment;
 
-        stackFrames = new Vector();
+        stackFrames = new int[16];
+        memory = ram.getContents();
+        displayChanges = (program.getGUI() != null);
 
         if (program.getGUI() != null) {
             builtInFunctionsRunner =
@@ -131,12 +141,21 @@ public class CPU {
         staticSegment.setEnabledRange(Definitions.VAR_START_ADDRESS,
 			   						  Definitions.VAR_END_ADDRESS - 1, true);
         setSP(Definitions.STACK_START_ADDRESS);
-		stackFrames.clear();
+		numberOfStackFrames = 0;
         if (builtInFunctionsRunner != null) {
             builtInFunctionsRunner.killAllRunningBuiltInFunctions();
         }
     }
 
+    /**
+     * Sets whether changes are displayed. If not, the arithmetic, memory access and
+     * goto instructions are executed directly on the contents of the RAM, without
+     * the memory segments and the calculator.
+     */
+    public void setDisplayChanges(boolean displayChanges) {
+        this.displayChanges = displayChanges && program.getGUI() != null;
+    }
+
     /**
      * Returns the bus.
      */
@@ -210,6 +229,11 @@ public class CPU {
         if (currentInstruction == null)
             throw new ProgramException("No more instructions to execute");
 
+        Metrics.vmInstructions++;
+
+        if (!displayChanges && executeDirectly())
+            return;
+
         switch (currentInstruction.getOpCode()) {
             case HVMInstructionSet.ADD_CODE:
                 add();
@@ -264,11 +288,142 @@ public class CPU {
                 break;
             case HVMInstructionSet.CALL_CODE:
                 callFunction(currentInstruction.getArg0(), currentInstruction.getArg1(),
-                           currentInstruction.getStringArg(), false);
+                           currentInstruction.getFunctionId(), false);
                 break;
         }
     }
 
+    // Executes the current instruction directly on the contents of the RAM, if it
+    // is an arithmetic, memory access or goto instruction that doesn't fail.
+    // Returns false if the instruction should be executed through the memory
+    // segments instead, which also report the errors.
+    private boolean executeDirectly() {
+        short[] mem = memory;
+        int sp = mem[Definitions.SP_ADDRESS];
+        short opCode = currentInstruction.getOpCode();
+
+        switch (opCode) {
+            case HVMInstructionSet.ADD_CODE:
+            case HVMInstructionSet.SUBSTRACT_CODE:
+            case HVMInstructionSet.EQUAL_CODE:
+            case HVMInstructionSet.GREATER_THAN_CODE:
+            case HVMInstructionSet.LESS_THAN_CODE:
+            case HVMInstructionSet.AND_CODE:
+            case HVMInstructionSet.OR_CODE:
+                if (sp - 2 < Definitions.STACK_START_ADDRESS || sp - 1 > Definitions.STACK_END_ADDRESS)
+                    return false;
+
+                short x = mem[sp - 2];
+                short y = mem[sp - 1];
+                short result = 0;
+                switch (opCode) {
+                    case HVMInstructionSet.ADD_CODE: result = (short)(x + y); break;
+                    case HVMInstructionSet.SUBSTRACT_CODE: result = (short)(x - y); break;
+                    case HVMInstructionSet.EQUAL_CODE: result = (short)(x == y ? -1 : 0); break;
+                    case HVMInstructionSet.GREATER_THAN_CODE: result = (short)(x > y ? -1 : 0); break;
+                    case HVMInstructionSet.LESS_THAN_CODE: result = (short)(x < y ? -1 : 0); break;
+                    case HVMInstructionSet.AND_CODE: result = (short)(x & y); break;
+                    case HVMInstructionSet.OR_CODE: result = (short)(x | y); break;
+                }
+                mem[sp - 2] = result;
+                mem[Definitions.SP_ADDRESS] = (short)(sp - 1);
+                return true;
+
+            case HVMInstructionSet.NEGATE_CODE:
+            case HVMInstructionSet.NOT_CODE:
+                if (sp - 1 < Definitions.STACK_START_ADDRESS || sp - 1 > Definitions.STACK_END_ADDRESS)
+                    return false;
+
+                if (opCode == HVMInstructionSet.NEGATE_CODE)
+                    mem[sp - 1] = (short)(-mem[sp - 1]);
+                else
+                    mem[sp - 1] = (short)(~mem[sp - 1]);
+                return true;
+
+            case HVMInstructionSet.PUSH_CODE:
+                if (sp < Definitions.STACK_START_ADDRESS - 1 || sp + 1 > Definitions.STACK_END_ADDRESS)
+                    return false;
+
+                short segmentCode = currentInstruction.getArg0();
+                short n = currentInstruction.getArg1();
+                short value;
+                if (segmentCode == HVMInstructionSet.CONST_SEGMENT_CODE)
+                    value = n;
+                else if (segmentCode == HVMInstructionSet.POINTER_SEGMENT_CODE) {
+                    if (n != 0 && n != 1)
+                        return false;
+                    value = mem[n == 0 ? Definitions.THIS_POINTER_ADDRESS :
+                                         Definitions.THAT_POINTER_ADDRESS];
+                }
+                else {
+                    int address = getDirectAddress(segmentCode, n);
+                    if (address < 0)
+                        return false;
+                    value = mem[address];
+                }
+
+                mem[sp] = value;
+                mem[Definitions.SP_ADDRESS] = (short)(sp + 1);
+                return true;
+
+            case HVMInstructionSet.POP_CODE:
+                if (sp - 1 < Definitions.STACK_START_ADDRESS || sp - 1 > Definitions.STACK_END_ADDRESS)
+                    return false;
+
+                // pointer changes update the memory segments
+                if (currentInstruction.getArg0() == HVMInstructionSet.POINTER_SEGMENT_CODE)
+                    return false;
+
+                int address = getDirectAddress(currentInstruction.getArg0(),
+                                               currentInstruction.getArg1());
+                if (address < 0)
+                    return false;
+
+                if (mem[address] != mem[sp - 1]) {
+                    // pointers and the screen are updated through the RAM
+                    if (address > Definitions.THAT_POINTER_ADDRESS &&
+                        address < Definitions.SCREEN_START_ADDRESS)
+                        mem[address] = mem[sp - 1];
+                    else
+                        ram.setValueAt(address, mem[sp - 1], true);
+                }
+                mem[Definitions.SP_ADDRESS] = (short)(sp - 1);
+                return true;
+
+            case HVMInstructionSet.GOTO_CODE:
+                program.setPC(currentInstruction.getArg0());
+                return true;
+
+            case HVMInstructionSet.IF_GOTO_CODE:
+                if (sp - 1 < Definitions.STACK_START_ADDRESS || sp - 1 > Definitions.STACK_END_ADDRESS)
+                    return false;
+
+                mem[Definitions.SP_ADDRESS] = (short)(sp - 1);
+                if (mem[sp - 1] != 0)
+                    program.setPC(currentInstruction.getArg0());
+                return true;
+        }
+
+        return false;
+    }
+
+    // Returns the RAM address of the n'th entry of the given segment, or -1 if
+    // the entry is out of the segment space.
+    private int getDirectAddress(short segmentCode, short n) {
+        MemorySegment segment = (segmentCode == HVMInstructionSet.STATIC_SEGMENT_CODE) ?
+                                staticSegment : segments[segmentCode];
+        short address = (short)(n + segment.getStartAddress());
+
+        if (segmentCode == HVMInstructionSet.THIS_SEGMENT_CODE) {
+            if (address < Definitions.HEAP_START_ADDRESS || address > Definitions.HEAP_END_ADDRESS)
+                return -1;
+        }
+        else if (!segment.isInEnabledRange(address))
+            return -1;
+
+        return address;
+    }
+
     /**
      * integer addition (binary operation).
      */
@@ -413,13 +568,13 @@ public class CPU {
             pushValue(MAIN_STACK, (short)0);
         }
 
-        String functionName = currentInstruction.getStringArg();
+        int functionId = currentInstruction.getFunctionId();
 
         // adds the new function to the top of the call stack.
-        callStack.pushFunction(functionName);
+        callStack.pushFunction(functionId);
 
         // sets the static segment range
-        setStaticRange(functionName);
+        setStaticRange(functionId);
     }
 
 	/**
@@ -472,10 +627,9 @@ public class CPU {
         callStack.popFunction();
 
         // check whether there is a "calling frame"
-        if (stackFrames.size() > 0) {
+        if (numberOfStackFrames > 0) {
             // retrieve stack frame address of old function
-            int frameAddress = ((Integer)stackFrames.lastElement()).intValue();
-            stackFrames.removeElementAt(stackFrames.size() - 1);
+            int frameAddress = stackFrames[--numberOfStackFrames];
             workingStackSegment.setStartAddress(frameAddress);
 
             // disable non relevant range of the local segment - enable only the locals
@@ -501,8 +655,8 @@ public class CPU {
 			builtInFunctionsRunner.returnToBuiltInFunction(popValue(METHOD_STACK));
 		} else if (returnAddress >= 0 && returnAddress < program.getSize()) {
             // sets the static segment range
-			if (stackFrames.size() > 0) {
-				setStaticRange(callStack.getTopFunction());
+			if (numberOfStackFrames > 0) {
+				setStaticRange(callStack.getTopFunctionId());
 			} else {
 				staticSegment.setStartAddress(Definitions.VAR_START_ADDRESS);
 				staticSegment.setEnabledRange(Definitions.VAR_START_ADDRESS,
@@ -526,8 +680,14 @@ public class CPU {
 		for (int i=0; i<params.length; ++i) {
 			pushValue(METHOD_STACK, params[i]);
 		}
-		callFunction(program.getAddress(functionName), (short)params.length,
-					 functionName, true);
+		short address = program.getAddress(functionName);
+		int functionId;
+		if (address == VMProgram.BUILTIN_FUNCTION_ADDRESS) {
+			functionId = program.getBuiltInFunctionId(functionName, params.length);
+		} else {
+			functionId = program.getFunctionId(functionName);
+		}
+		callFunction(address, (short)params.length, functionId, true);
 	}
 	
     /**
@@ -537,10 +697,17 @@ public class CPU {
 	 * If callerIsBuiltIn then the caller is a builtIn function that called
 	 * this function through callFunctionFromBuiltIn.
 	 * If address is -1 then a native function should be looked up and called.
+	 * functionId is the id of the called function in the program.
      */
-    public void callFunction(short address, short numberOfArguments, String functionName, boolean callerIsBuiltIn)
+    public void callFunction(short address, short numberOfArguments, int functionId, boolean callerIsBuiltIn)
      throws ProgramException {
-        stackFrames.addElement(new Integer(workingStackSegment.getStartAddress()));
+        Metrics.vmCalls++;
+        if (numberOfStackFrames == stackFrames.length) {
+            int[] newStackFrames = new int[numberOfStackFrames * 2];
+            System.arraycopy(stackFrames, 0, newStackFrames, 0, numberOfStackFrames);
+            stackFrames = newStackFrames;
+        }
+        stackFrames[numberOfStackFrames++] = workingStackSegment.getStartAddress();
         workingStackSegment.setStartAddress(getSP() + 5);
 
 		if (callerIsBuiltIn) {
@@ -564,15 +731,17 @@ public class CPU {
 			localSegment.setEnabledRange(localSegment.getStartAddress(),
 										 localSegment.getStartAddress()-1,
 										 true); // no local variables
-			callStack.pushFunction(functionName + " (built-in)");
+			callStack.pushFunction(functionId);
 			staticSegment.setEnabledRange(0, -1, true); // empty static segment
 			// Read parameters from the stack
 			short[] params = new short[numberOfArguments];
 			for (int i=0; i<numberOfArguments; ++i) {
 				params[i] = argSegment.getValueAt(i);
 			}
-			// Call the built-in implementation
-			builtInFunctionsRunner.callBuiltInFunction(functionName, params);
+			// Call the built-in implementation that was found when the
+			// program was loaded
+			builtInFunctionsRunner.callBuiltInFunction(
+				program.getBuiltInFunction(functionId), params);
 		} else if (address >= 0 || address < program.getSize()) {
 			program.setPC(address);
 			program.setPC(address); // make sure previouspc isn't pc-1
@@ -588,6 +757,21 @@ public class CPU {
 		}
     }
 
+    /**
+     * Sets the static segment range according to the function with the given id.
+     */
+    protected void setStaticRange(int functionId) throws ProgramException {
+        int[] range = (functionId >= 0 ? program.getFunctionStaticRange(functionId) : null);
+        if (range == null) {
+            // Report the error
+            setStaticRange(functionId >= 0 ? program.getFunctionName(functionId) : "");
+            return;
+        }
+
+        staticSegment.setStartAddress(range[0]);
+        staticSegment.setEnabledRange(range[0], range[1], true);
+    }
+
     /**
      * Sets the static segment range according to the the given function (file) name.
      */
@@ -21,11 +21,20 @@ import Hack.ComputerParts.*;
 import java.util.*;
 
 /**
- * A call stack. Holds a vector of called function names.
+ * A call stack. Holds the ids of the called functions. The names of the
+ * functions are looked up in the program only when they are displayed or
+ * requested.
  */
 public class CallStack extends ComputerPart {
 
-    // the vector of function names.
+    // the stack of function ids and its size.
+    private int[] ids;
+    private int size;
+
+    // the program that gives the names of the functions.
+    private VMProgram program;
+
+    // the vector of function names that is sent to the gui.
     private Vector names;
 
     // the stack gui
@@ -37,33 +46,54 @@ public class CallStack extends ComputerPart {
     public CallStack(CallStackGUI gui) {
         super(gui != null);
         names = new Vector();
+        ids = new int[16];
         this.gui = gui;
     }
 
+    /**
+     * Sets the program that gives the names of the functions.
+     */
+    void setProgram(VMProgram program) {
+        this.program = program;
+    }
+
     /**
      * Returns the name of the function at the top of the stack.
      */
     public String getTopFunction() {
-        return (names.size() > 0 ? (String)names.elementAt(names.size() - 1) : "");
+        return (size > 0 ? program.getFunctionName(ids[size - 1]) : "");
     }
 
     /**
-     * Adds the given function name at the top of the stack.
+     * Returns the id of the function at the top of the stack, or -1 if the
+     * stack is empty.
      */
-    public void pushFunction(String functionName) {
-        names.addElement(functionName);
+    public int getTopFunctionId() {
+        return (size > 0 ? ids[size - 1] : -1);
+    }
+
+    /**
+     * Adds the function with the given id at the top of the stack.
+     */
+    public void pushFunction(int functionId) {
+        if (size == ids.length) {
+            int[] newIds = new int[size * 2];
+            System.arraycopy(ids, 0, newIds, 0, size);
+            ids = newIds;
+        }
+        ids[size++] = functionId;
         if (displayChanges)
-            gui.setContents(names);
+            gui.setContents(getNames());
     }
 
     /**
      * Removes the function at the top of the stack.
      */
     public void popFunction() {
-        if (names.size() > 0) {
-            names.removeElementAt(names.size() - 1);
+        if (size > 0) {
+            size--;
             if (displayChanges)
-                gui.setContents(names);
+                gui.setContents(getNames());
         }
     }
 
@@ -72,7 +102,7 @@ public class CallStack extends ComputerPart {
      */
     public void reset() {
         super.reset();
-        names.removeAllElements();
+        size = 0;
     }
 
     /**
@@ -84,6 +114,14 @@ public class CallStack extends ComputerPart {
 
     public void refreshGUI() {
         if (displayChanges)
-            gui.setContents(names);
+            gui.setContents(getNames());
+    }
+
+    // Returns the vector of the names of the functions in the stack.
+    private Vector getNames() {
+        names.removeAllElements();
+        for (int i = 0; i < size; i++)
+            names.addElement(program.getFunctionName(ids[i]));
+        return names;
     }
 }
@@ -83,7 +83,7 @@ public class VMEmulator extends HackSimulator
      * Constructs a new VM Emulator with no GUI component.
      */
     public VMEmulator() {
-        VMProgram program = new VMProgram(null);
+        VMProgram program = new VMProgram(null, INITIAL_BUILTIN_DIR);
 
         MemorySegment[][] segments = new MemorySegment[Definitions.RAM_SIZE][];
 
@@ -173,7 +173,7 @@ public class VMEmulator extends HackSimulator
     public VMEmulator(VMEmulatorGUI gui) {
         this.gui = gui;
 
-        VMProgram program = new VMProgram(gui.getProgram());
+        VMProgram program = new VMProgram(gui.getProgram(), INITIAL_BUILTIN_DIR);
         program.addErrorListener(this);
         program.addProgramListener(this);
 
@@ -339,6 +339,40 @@ public class VMEmulator extends HackSimulator
             throw new VariableException("Unknown variable", varName);
     }
 
+    /**
+     * Returns an accessor to the given variable, or null if it's the current
+     * function or line.
+     * Throws VariableException if the variable is not legal.
+     */
+    public VariableAccessor getVariableAccessor(String varName) throws VariableException {
+        if (varName.equals(VAR_LOCAL))
+            return new RAMAccessor(Definitions.LOCAL_POINTER_ADDRESS);
+        else if (varName.equals(VAR_ARGUMENT))
+            return new RAMAccessor(Definitions.ARG_POINTER_ADDRESS);
+        else if (varName.equals(VAR_THIS))
+            return new RAMAccessor(Definitions.THIS_POINTER_ADDRESS);
+        else if (varName.equals(VAR_THAT))
+            return new RAMAccessor(Definitions.THAT_POINTER_ADDRESS);
+        else if (varName.equals(VAR_SP))
+            return new RAMAccessor(Definitions.SP_ADDRESS);
+        else if (varName.equals(VAR_CURRENT_FUNCTION) || varName.equals(VAR_LINE))
+            return null;
+        else if (varName.startsWith(VAR_LOCAL + "["))
+            return new SegmentAccessor(HVMInstructionSet.LOCAL_SEGMENT_CODE, getRamIndex(varName));
+        else if (varName.startsWith(VAR_ARGUMENT + "["))
+            return new SegmentAccessor(HVMInstructionSet.ARG_SEGMENT_CODE, getRamIndex(varName));
+        else if (varName.startsWith(VAR_THIS + "["))
+            return new SegmentAccessor(HVMInstructionSet.THIS_SEGMENT_CODE, getRamIndex(varName));
+        else if (varName.startsWith(VAR_THAT + "["))
+            return new SegmentAccessor(HVMInstructionSet.THAT_SEGMENT_CODE, getRamIndex(varName));
+        else if (varName.startsWith(VAR_TEMP + "["))
+            return new SegmentAccessor(HVMInstructionSet.TEMP_SEGMENT_CODE, getRamIndex(varName));
+        else if (varName.startsWith(VAR_RAM + "["))
+            return new RAMAccessor(getRamIndex(varName));
+        else
+            throw new VariableException("Unknown variable", varName);
+    }
+
     /**
      * Sets the given variable with the given value.
      * Throws VariableException if the variable name or value are not legal.
@@ -454,6 +488,9 @@ public class VMEmulator extends HackSimulator
                 throw new CommandException("Illegal number of arguments to command", command);
 
             cpu.executeInstruction();
+
+            if (cpu.getProgram().isHalted())
+                notifyListeners(ControllerEvent.PROGRAM_HALTED, null);
         }
         else if (command[0].equals(COMMAND_SETVAR)) {
             if (command.length != 3)
@@ -557,6 +594,7 @@ public class VMEmulator extends HackSimulator
         cpu.getStaticSegment().setAnimate(animate);
 
         boolean displayChanges = (animationMode != HackController.NO_DISPLAY_CHANGES);
+        cpu.setDisplayChanges(displayChanges);
         cpu.getRAM().setDisplayChanges(displayChanges);
         cpu.getCallStack().setDisplayChanges(displayChanges);
         cpu.getProgram().setDisplayChanges(displayChanges);
@@ -672,4 +710,32 @@ public class VMEmulator extends HackSimulator
             throw new VariableException(value +
                 " is an illegal value for", varName);
     }
+
+    // An accessor to an address in the RAM
+    class RAMAccessor implements VariableAccessor {
+        private int address;
+
+        public RAMAccessor(int address) {
+            this.address = address;
+        }
+
+        public short get() {
+            return cpu.getRAM().getValueAt(address);
+        }
+    }
+
+    // An accessor to an entry of a memory segment
+    class SegmentAccessor implements VariableAccessor {
+        private short segmentCode;
+        private short index;
+
+        public SegmentAccessor(short segmentCode, short index) {
+            this.segmentCode = segmentCode;
+            this.index = index;
+        }
+
+        public short get() {
+            return cpu.getSegmentAt(segmentCode, index);
+        }
+    }
 }
@@ -27,6 +27,10 @@ public class VMEmulatorInstruction extends HVMInstruction {
     // The index of the instruction in its containing function.
     private short indexInFunction;
 
+    // The id of the function that a function instruction declares or a call
+    // instruction calls.
+    private int functionId;
+
     /**
      * Constructs a new instruction with two arguments and the index in function.
      */
@@ -58,4 +62,20 @@ public class VMEmulatorInstruction extends HVMInstruction {
     public short getIndexInFunction() {
         return indexInFunction;
     }
+
+    /**
+     * Sets the id of the function that this function instruction declares or
+     * this call instruction calls.
+     */
+    void setFunctionId(int functionId) {
+        this.functionId = functionId;
+    }
+
+    /**
+     * Returns the id of the function that this function instruction declares
+     * or this call instruction calls.
+     */
+    int getFunctionId() {
+        return functionId;
+    }
 }
@@ -66,6 +66,22 @@ public class VMProgram extends InteractiveComputerPart
 
 	// Addresses of functions by name
 	private Hashtable functions;
+
+	// Ids of the functions that the program declares or calls, by name.
+	// Built-in functions are named with a " (built-in)" suffix, and are
+	// found by their name and number of arguments.
+	private Hashtable functionIds;
+
+	// The names, static segment ranges and built-in implementations of the
+	// functions, by id. The range is null if the function's class isn't
+	// found, and the implementation is null if the function isn't built-in.
+	private String[] functionNames;
+	private int[][] functionStaticRanges;
+	private BuiltInFunction[] builtInFunctions;
+	private int numberOfFunctions;
+
+	// The dir of the built-in implementations
+	private File builtInDir;
 	private short infiniteLoopForBuiltInsAddress;
 	
     // The current index of the static variables
@@ -81,14 +97,17 @@ public class VMProgram extends InteractiveComputerPart
 	private boolean isSlashStar;
 
     /**
-     * Constructs a new empty program with the given GUI.
+     * Constructs a new empty program with the given GUI, which calls the
+     * built-in implementations of functions in the given dir.
      */
-    public VMProgram(VMProgramGUI gui) {
+    public VMProgram(VMProgramGUI gui, File builtInDir) {
         super(gui != null);
         this.gui = gui;
+        this.builtInDir = builtInDir;
         listeners = new Vector();
         staticRange = new Hashtable();
 		functions = new Hashtable();
+		functionIds = new Hashtable();
 
         if (hasGUI) {
             gui.addProgramListener(this);
@@ -127,6 +146,11 @@ public class VMProgram extends InteractiveComputerPart
         // First scan
 		staticRange.clear();
 		functions.clear();
+		functionIds.clear();
+		functionNames = new String[16];
+		functionStaticRanges = new int[16][];
+		builtInFunctions = new BuiltInFunction[16];
+		numberOfFunctions = 0;
 		builtInAccessStatus = BUILTIN_ACCESS_UNDECIDED;
         Hashtable symbols = new Hashtable();
 		nextPC = 0;
@@ -183,6 +207,9 @@ public class VMProgram extends InteractiveComputerPart
             range[1] = currentStaticIndex - 1;
             staticRange.put(className, range);
         }
+		for (int i = 0; i < numberOfFunctions; i++) {
+			functionStaticRanges[i] = findStaticRange(functionNames[i]);
+		}
 		instructionsLength = visibleInstructionsLength = nextPC;
 		if (builtInAccessStatus == BUILTIN_ACCESS_AUTHORIZED) {
 			// Add some "invisible" code in the end to make everything work
@@ -223,6 +250,7 @@ public class VMProgram extends InteractiveComputerPart
 											  getAddress("Sys.init"), (short)0,
 											  ++indexInInvisibleCode);
 				instructions[nextPC].setStringArg("Sys.init");
+				instructions[nextPC].setFunctionId(getBuiltInFunctionId("Sys.init", 0));
 				startAddress = nextPC;
 				nextPC++;
 			}
@@ -391,6 +419,7 @@ public class VMProgram extends InteractiveComputerPart
 
                             instructions[pc] = new VMEmulatorInstruction(opCode, arg0, indexInFunction);
                             instructions[pc].setStringArg(currentFunction);
+                            instructions[pc].setFunctionId(getFunctionId(currentFunction));
                             break;
 
                         case HVMInstructionSet.CALL_CODE:
@@ -411,6 +440,10 @@ public class VMProgram extends InteractiveComputerPart
                             instructions[pc] = new VMEmulatorInstruction(opCode, arg0, arg1,
                                                                          indexInFunction);
                             instructions[pc].setStringArg(functionName);
+                            if (arg0 == BUILTIN_FUNCTION_ADDRESS)
+                                instructions[pc].setFunctionId(getBuiltInFunctionId(functionName, arg1));
+                            else
+                                instructions[pc].setFunctionId(getFunctionId(functionName));
                             break;
 
                         case HVMInstructionSet.LABEL_CODE:
@@ -537,6 +570,13 @@ public class VMProgram extends InteractiveComputerPart
         return (int[])staticRange.get(className);
     }
 
+    /**
+     * Returns the names of the classes of the program.
+     */
+    public Enumeration getClassNames() {
+        return staticRange.keys();
+    }
+
     /**
      * Returns the size of the program.
      */
@@ -578,6 +618,87 @@ public class VMProgram extends InteractiveComputerPart
 		}
 	}
 
+    /**
+     * Returns the id of the vm function with the given name. A new id is
+     * given to a function the first time it is requested after the program
+     * is loaded.
+     */
+    int getFunctionId(String functionName) {
+        return getFunctionId(functionName, functionName);
+    }
+
+    /**
+     * Returns the id of the built-in implementation of the given function
+     * which takes the given number of arguments. The implementation is looked
+     * up the first time it is requested after the program is loaded.
+     */
+    int getBuiltInFunctionId(String functionName, int numberOfArguments) {
+        int id = getFunctionId(functionName + " " + numberOfArguments + " (built-in)",
+                               functionName + " (built-in)");
+        if (builtInFunctions[id] == null)
+            builtInFunctions[id] = new BuiltInFunction(builtInDir, functionName, numberOfArguments);
+        return id;
+    }
+
+    // Returns the id of the function that is found by the given key and
+    // has the given name, giving it a new id if it isn't found.
+    private int getFunctionId(String key, String functionName) {
+        Integer id = (Integer)functionIds.get(key);
+        if (id != null)
+            return id.intValue();
+
+        if (numberOfFunctions == functionNames.length) {
+            String[] newNames = new String[numberOfFunctions * 2];
+            int[][] newRanges = new int[numberOfFunctions * 2][];
+            BuiltInFunction[] newBuiltInFunctions = new BuiltInFunction[numberOfFunctions * 2];
+            System.arraycopy(functionNames, 0, newNames, 0, numberOfFunctions);
+            System.arraycopy(functionStaticRanges, 0, newRanges, 0, numberOfFunctions);
+            System.arraycopy(builtInFunctions, 0, newBuiltInFunctions, 0, numberOfFunctions);
+            functionNames = newNames;
+            functionStaticRanges = newRanges;
+            builtInFunctions = newBuiltInFunctions;
+        }
+        functionNames[numberOfFunctions] = functionName;
+        functionStaticRanges[numberOfFunctions] = findStaticRange(functionName);
+        functionIds.put(key, Integer.valueOf(numberOfFunctions));
+        return numberOfFunctions++;
+    }
+
+    /**
+     * Returns the name of the function with the given id.
+     */
+    String getFunctionName(int functionId) {
+        return functionNames[functionId];
+    }
+
+    /**
+     * Returns the static variable address range of the class of the function
+     * with the given id, in the form of a 2-elements array
+     * {startAddress, endAddress}. If the class is unknown, returns null.
+     */
+    int[] getFunctionStaticRange(int functionId) {
+        return functionStaticRanges[functionId];
+    }
+
+    /**
+     * Returns the built-in implementation of the function with the given id,
+     * or null if the function isn't built-in.
+     */
+    BuiltInFunction getBuiltInFunction(int functionId) {
+        return builtInFunctions[functionId];
+    }
+
+    // Returns the static range of the class of the given function, or null if
+    // the function name is illegal or the class isn't (yet) known.
+    private int[] findStaticRange(String functionName) {
+        int dotLocation = functionName.indexOf(".");
+        if (dotLocation == -1)
+            return null;
+
+        Object range = staticRange.get(functionName.substring(0, dotLocation));
+        return (range instanceof int[] ? (int[])range : null);
+    }
+
     /**
      * Returns the next program counter.
      */
@@ -626,6 +747,27 @@ public class VMProgram extends InteractiveComputerPart
 		setPC(infiniteLoopForBuiltInsAddress);
     }
 
+    /**
+     * Returns true if the program reached a halt loop: the next instruction is a goto
+     * to itself (possibly through labels), such as the infinite loop for built-ins.
+     */
+    public boolean isHalted() {
+        int pc = skipLabels(nextPC);
+        if (pc < 0 || pc >= instructionsLength ||
+                instructions[pc].getOpCode() != HVMInstructionSet.GOTO_CODE)
+            return false;
+
+        return (skipLabels(instructions[pc].getArg0()) == pc);
+    }
+
+    // Returns the address of the first instruction that is not a label, from the given address.
+    private int skipLabels(int address) {
+        while (address >= 0 && address < instructionsLength &&
+               instructions[address].getOpCode() == HVMInstructionSet.LABEL_CODE)
+            address++;
+        return address;
+    }
+
     /**
      * Returns the next VMEmulatorInstruction and increments the PC by one.
      * The PC will be incremented by more if the next instruction is a label.